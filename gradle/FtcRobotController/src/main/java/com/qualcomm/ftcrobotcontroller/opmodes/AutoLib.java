@@ -2,8 +2,10 @@ package com.qualcomm.ftcrobotcontroller.opmodes;
 
 import com.qualcomm.robotcore.eventloop.opmode.OpMode;
 import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.DcMotorController;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -38,6 +40,52 @@ public class AutoLib {
             return false;
         }
 
+        // what this Step is waiting on, if anything -- a Step that is just waiting for a time or an
+        // external Event can say so, and a scheduled ConcurrentSequence will
+        // skip its loop() until that comes true. null means "call my loop() every cycle".
+        Wake mWake;
+
+        // declare (or with null, clear) what this Step is waiting on
+        void waitFor(Wake wake) {
+            mWake = wake;
+        }
+
+        // returns true iff this Step needs its loop() called at time now (System.nanoTime())
+        boolean due(long now) {
+            return (mWake == null || mWake.due(now));
+        }
+
+    }
+
+
+    // ------------------ some things a Step can wait on ----------------------------
+
+    // a wake condition -- must be cheap, since a scheduler asks every cycle instead of calling loop()
+    static public interface Wake {
+        // returns true when the waiting Step needs to run again; now is System.nanoTime()
+        boolean due(long now);
+    }
+
+    // wakes a Step when something outside the Sequence (a sensor callback, the vision thread,
+    // another Step ...) signals it
+    static public class Event implements Wake {
+        volatile boolean mSignaled;
+
+        public void signal() {
+            mSignaled = true;
+        }
+
+        public void reset() {
+            mSignaled = false;
+        }
+
+        public boolean signaled() {
+            return mSignaled;
+        }
+
+        public boolean due(long now) {
+            return mSignaled;
+        }
     }
 
     // ------------------ some implementations of Sequence constructs -------------------------
@@ -84,26 +132,377 @@ public class AutoLib {
             return (mIndex >= mSteps.size());   // return true when last Step completes
         }
 
+        // only the current Step can need anything
+        public boolean due(long now) {
+            return super.due(now) && (mIndex >= mSteps.size() || mSteps.get(mIndex).due(now));
+        }
+
     }
 
 
     // a Sequence that performs its constituent Steps concurrently
     static public class ConcurrentSequence extends Sequence {
+        public static final int ALL = 0;    // done when all the Steps are done (the default)
+        public static final int ANY = 1;    // done as soon as any one of them is (e.g. a timeout racing a sensor)
+
+        int mNeeded;            // how many Steps must finish for the Sequence to be done (ALL, ANY or N)
+        Step[] mActive;         // the Steps that haven't finished yet, in the order they were added ...
+        int mActiveCount;       // ... and how many of them there are
+        int mAdded;             // how many of mSteps have been moved into mActive
+        int mCompleted;         // how many Steps have finished
+        boolean mFinished;      // set once enough of them have
+        boolean mScheduled;     // only run the Steps that are due (see Step.due())
+        int mSkipped;           // Step evaluations skipped on the last loop() ...
+        long mSkippedTotal;     // ... and in all
 
         public ConcurrentSequence() {
+            mNeeded = ALL;
+            mScheduled = false;
+        }
+
+        // make the Sequence done when the given number of its Steps are -- ALL, ANY, or N (of however many there are)
+        public ConcurrentSequence setCompletion(int needed) {
+            mNeeded = needed;
+            return this;        // allows daisy-chaining of calls
+        }
+
+        // in scheduled mode, a Step that is waiting on something (see Step.waitFor()) isn't run
+        // until its wake condition comes true.
+        public ConcurrentSequence setScheduled(boolean scheduled) {
+            mScheduled = scheduled;
+            return this;        // allows daisy-chaining of calls
         }
 
         // run all the Steps in the Sequence "concurrently" -- i.e. run the loop() function of
-        // each of the Steps each time loop() is called. When ALL the Steps report that they
-        // are done, then this Sequence is done.
+        // each of the unfinished Steps each time loop() is called. A Step that reports it is done
+        // is dropped and not run again. When ALL the Steps (or as many as setCompletion() asked for)
+        // have reported that they are done, then this Sequence is done, and any still running are abandoned.
         public boolean loop() {
             super.loop();
-            boolean bDone = true;
-            for (Step s : mSteps)
-                bDone &= s.loop();      // "done" means ALL Steps are done
-            return bDone;
+            if (mFinished)
+                return true;
+
+            // pick up any Steps added since last time
+            int n = mSteps.size();
+            if (mAdded < n) {
+                if (mActive == null || mActive.length < mActiveCount + n - mAdded)
+                    mActive = (mActive == null) ? new Step[n] : Arrays.copyOf(mActive, mActiveCount + n - mAdded);
+                while (mAdded < n)
+                    mActive[mActiveCount++] = mSteps.get(mAdded++);
+            }
+
+            // run the active Steps, squeezing out the ones that finish
+            long now = mScheduled ? System.nanoTime() : 0L;
+            int skipped = 0;
+            int kept = 0;
+            for (int i=0; i<mActiveCount; i++) {
+                Step s = mActive[i];
+                if (mScheduled && !s.due(now))
+                    skipped++;
+                else if (s.loop()) {
+                    mCompleted++;
+                    continue;
+                }
+                mActive[kept++] = s;
+            }
+            for (int i=kept; i<mActiveCount; i++)
+                mActive[i] = null;
+            mActiveCount = kept;
+            mSkipped = skipped;
+            mSkippedTotal += skipped;
+
+            int needed = (mNeeded == ALL || mNeeded > n) ? n : mNeeded;
+            mFinished = (mCompleted >= needed);
+            return mFinished;
         }
 
+        // in scheduled mode we only need running if one of our Steps does
+        public boolean due(long now) {
+            if (!super.due(now))
+                return false;
+            if (!mScheduled || mFinished || mAdded < mSteps.size())
+                return true;
+            for (int i=0; i<mActiveCount; i++)
+                if (mActive[i].due(now))
+                    return true;
+            return false;
+        }
+
+        // number of Steps still running, and finished
+        public int active() { return mActiveCount + mSteps.size() - mAdded; }
+        public int completed() { return mCompleted; }
+
+        // number of Step evaluations skipped on the last loop(), and since we started
+        public int skipped() { return mSkipped; }
+        public long skippedTotal() { return mSkippedTotal; }
+
+    }
+
+
+    // ------------------ a compiled form of a Sequence tree ----------------------------
+
+    // a tree of LinearSequences and ConcurrentSequences flattened into a program in plain arrays.
+    // compile it once in init() and call its loop() instead of the root's -- it runs the same Steps in
+    // the same order with the same results, but walks the tree with its own little stacks instead of
+    // recursive loop() calls, and allocates nothing while running. Only LinearSequences and
+    // ConcurrentSequences themselves are taken apart -- any subclass (MoveByTime etc. included) is just called.
+    // Build the whole tree first: Steps added after compiling aren't seen, and the Sequences themselves
+    // must not have run yet. The program keeps its own run state: the Sequence objects in the tree
+    // don't advance (mIndex, active(), skipped() etc. stay where they were) -- ask the program instead.
+    // Whether it's any quicker depends on the runtime: on a desktop JVM it is about twice as fast
+    // interpreted, but 15-65% slower than the tree under a JIT that inlines its loop() calls. So it's
+    // opt-in -- the OpModes run their trees directly; only switch one over if timing it on the phone says to.
+    static public class StepProgram extends Step {
+        static final int STEP = 0;      // just call the Step's loop()
+        static final int SEQ = 1;       // run the children one after another (a LinearSequence)
+        static final int FORK = 2;      // run the children together until enough of them join (a ConcurrentSequence)
+
+        // each Sequence in the tree is a node of NODE ints in mCode, so everything the interpreter
+        // needs about it is in one place. A child is named by its node's offset in mCode, or, if it
+        // is a plain Step, by ~(its index in mStep) -- so a negative child is one to just call.
+        static final int OP = 0;            // SEQ or FORK
+        static final int FIRST = 1;         // where the node's children start in mKids ...
+        static final int COUNT = 2;         // ... and how many there are
+        static final int NEEDED = 3;        // FORK: number of children that must finish
+        static final int SCHEDULED = 4;     // FORK: 1 to only run the children that are due
+        static final int POS = 5;           // SEQ: index of current child; FORK: number of unfinished children
+        static final int COMPLETED = 6;     // FORK: children finished
+        static final int FINISHED = 7;      // FORK: 1 once enough have
+        static final int SHIFT = 3;
+        static final int NODE = 1 << SHIFT; // node n starts at mCode[n << SHIFT]
+
+        // the program
+        int[] mCode;            // the Sequence nodes, root first -- their run state is in here too
+        Sequence[] mSeq;        // what each node was compiled from
+        Step[] mStep;           // the plain Steps
+        int[] mKids;            // children of all the nodes, each node's together
+        int[] mActive;          // FORK: unfinished children, squeezed together in place (laid out like mKids)
+        int mRoot;              // the root, named like a child
+        boolean mAnyScheduled;  // does any FORK need the time?
+
+        // interpreter stacks -- deep enough for the tree
+        int[] mStack;           // node being run at each level
+        int[] mIter;            // where we are in its children (-1 on entry)
+        int[] mKept;            // FORK: where the unfinished children kept so far this loop() end
+        int[] mDueStack;        // for due()
+
+        int mNodes;             // nodes filled in so far (while compiling) ...
+        int mLeaves;            // ... and plain Steps
+        int mKidTop;            // mKids used so far (while compiling)
+        int mSkipped;           // Step evaluations skipped by scheduled FORKs on the last loop() ...
+        long mSkippedTotal;     // ... and in all
+
+        public StepProgram(Step root) {
+            int[] counts = new int[2];
+            count(root, counts);
+            int nodes = counts[0], leaves = counts[1];
+            mCode = new int[nodes * NODE];
+            mSeq = new Sequence[nodes];
+            mStep = new Step[leaves];
+            mKids = new int[nodes + leaves];
+            mActive = new int[nodes + leaves];
+            int depth = Math.max(depth(root), 1);
+            mStack = new int[depth];
+            mIter = new int[depth];
+            mKept = new int[depth];
+            mDueStack = new int[nodes + leaves];
+            mNodes = 0;
+            mLeaves = 0;
+            mKidTop = 0;
+            mRoot = emit(root);
+        }
+
+        // how to run a Step: as a SEQ, a FORK, or just call its loop() -- a subclass of either Sequence
+        // may have its own loop() or due(), so the program can't stand in for it
+        static int opFor(Step s) {
+            if (s.getClass() == LinearSequence.class)
+                return SEQ;
+            if (s.getClass() == ConcurrentSequence.class)
+                return FORK;
+            return STEP;
+        }
+
+        // count the Sequences (counts[0]) and plain Steps (counts[1]) in the tree
+        static void count(Step s, int[] counts) {
+            if (opFor(s) == STEP) {
+                counts[1]++;
+                return;
+            }
+            counts[0]++;
+            for (Step kid : ((Sequence) s).mSteps)
+                count(kid, counts);
+        }
+
+        // how deeply the Sequences nest
+        static int depth(Step s) {
+            if (opFor(s) == STEP)
+                return 0;
+            int d = 0;
+            for (Step kid : ((Sequence) s).mSteps)
+                d = Math.max(d, depth(kid));
+            return d + 1;
+        }
+
+        // lay out a Step and (recursively -- this only happens once) its children; returns its name
+        int emit(Step s) {
+            int op = opFor(s);
+            if (op == STEP) {
+                mStep[mLeaves] = s;
+                return ~mLeaves++;
+            }
+            Sequence seq = (Sequence) s;
+            mSeq[mNodes] = seq;
+            int n = mNodes++ << SHIFT;
+            ArrayList<Step> kids = seq.mSteps;
+            int k = kids.size();
+            int first = mKidTop;
+            mCode[n + OP] = op;
+            mCode[n + FIRST] = first;
+            mCode[n + COUNT] = k;
+            mKidTop += k;           // reserve our children's places before theirs
+            for (int i=0; i<k; i++)
+                mKids[first + i] = emit(kids.get(i));
+            if (op == FORK) {
+                ConcurrentSequence cs = (ConcurrentSequence) seq;
+                mCode[n + NEEDED] = (cs.mNeeded == ConcurrentSequence.ALL || cs.mNeeded > k) ? k : cs.mNeeded;
+                mCode[n + SCHEDULED] = cs.mScheduled ? 1 : 0;
+                mAnyScheduled |= cs.mScheduled;
+                System.arraycopy(mKids, first, mActive, first, k);
+                mCode[n + POS] = k;
+            }
+            return n;
+        }
+
+        // run the next time-slice of the whole tree; return true when its root is done.
+        // Steps are run right where they're found -- only SEQ and FORK nodes go on the stack.
+        public boolean loop() {
+            super.loop();
+            final int[] code = mCode, kids = mKids, active = mActive;
+            final int[] stack = mStack, iter = mIter, kept = mKept;
+            final Step[] step = mStep;
+            if (mRoot < 0)
+                return step[~mRoot].loop();
+            long now = mAnyScheduled ? System.nanoTime() : 0L;
+            int skipped = 0;
+            boolean r = false;      // result of the node that just finished
+            int sp = 0;
+            stack[0] = mRoot;
+            iter[0] = -1;
+
+            cycle:
+            while (true) {
+                int n = stack[sp];
+                if (code[n + OP] == SEQ) {                  // (a child Sequence's result is handed back below)
+                    int p = code[n + POS];
+                    if (p < code[n + COUNT]) {
+                        int kid = kids[code[n + FIRST] + p];
+                        if (kid >= 0) {                     // go run the Sequence, and come back
+                            stack[++sp] = kid;
+                            iter[sp] = -1;
+                            continue;
+                        }
+                        if (step[~kid].loop())              // current Step is done -- next one, next time
+                            code[n + POS] = ++p;
+                    }
+                    r = (p >= code[n + COUNT]);
+                }
+                else {      // FORK
+                    int i = iter[sp];
+                    if (i >= 0 || code[n + FINISHED] == 0) {
+                        int base = code[n + FIRST];
+                        int k;                              // i and k index mActive directly
+                        int done = 0;
+                        if (i < 0) {                        // just got here
+                            k = base;
+                            i = base;
+                        } else {                            // child Sequence at i just finished its time-slice
+                            k = kept[sp];
+                            if (r)
+                                done++;
+                            else
+                                active[k++] = active[i];
+                            i++;
+                        }
+                        int end = base + code[n + POS];
+                        boolean scheduled = (code[n + SCHEDULED] != 0);
+                        for (; i < end; i++) {
+                            int kid = active[i];
+                            if (scheduled && !due(kid, now)) {
+                                skipped++;
+                                active[k++] = kid;
+                            }
+                            else if (kid >= 0) {            // go run the Sequence, and come back
+                                code[n + COMPLETED] += done;
+                                iter[sp] = i;
+                                kept[sp] = k;
+                                stack[++sp] = kid;
+                                iter[sp] = -1;
+                                continue cycle;
+                            }
+                            else if (step[~kid].loop())
+                                done++;
+                            else
+                                active[k++] = kid;
+                        }
+                        int completed = code[n + COMPLETED] + done;
+                        code[n + COMPLETED] = completed;
+                        code[n + POS] = k - base;
+                        code[n + FINISHED] = (completed >= code[n + NEEDED]) ? 1 : 0;
+                    }
+                    r = (code[n + FINISHED] != 0);
+                }
+                // hand r back to the parent -- a SEQ has nothing more to do this time, so pass its own straight on
+                while (true) {
+                    if (sp == 0) {              // the root finished its time-slice
+                        mSkipped = skipped;
+                        mSkippedTotal += skipped;
+                        return r;
+                    }
+                    n = stack[--sp];
+                    if (code[n + OP] != SEQ)
+                        continue cycle;
+                    int p = code[n + POS];
+                    if (r)
+                        code[n + POS] = ++p;
+                    r = (p >= code[n + COUNT]);
+                }
+            }
+        }
+
+        // same answer as the tree's due() would give for the named child -- is there a path down from
+        // it through Steps that aren't waiting, to one that has something to do?
+        boolean due(int kid, long now) {
+            int top = 0;
+            mDueStack[top++] = kid;
+            while (top > 0) {
+                int m = mDueStack[--top];
+                if (m < 0) {
+                    if (mStep[~m].due(now))
+                        return true;
+                    continue;
+                }
+                Wake w = mSeq[m >> SHIFT].mWake;
+                if (w != null && !w.due(now))
+                    continue;
+                int first = mCode[m + FIRST];
+                if (mCode[m + OP] == SEQ) {
+                    int p = mCode[m + POS];
+                    if (p >= mCode[m + COUNT])
+                        return true;
+                    mDueStack[top++] = mKids[first + p];
+                } else {
+                    if (mCode[m + SCHEDULED] == 0 || mCode[m + FINISHED] != 0)
+                        return true;
+                    for (int k = mCode[m + POS] - 1; k >= 0; k--)
+                        mDueStack[top++] = mActive[first + k];
+                }
+            }
+            return false;
+        }
+
+        // number of Step evaluations skipped on the last loop(), and since we started
+        public int skipped() { return mSkipped; }
+        public long skippedTotal() { return mSkippedTotal; }
     }
 
 
@@ -152,9 +551,14 @@ public class AutoLib {
         Timer mTimer;       // Timer for this Step
 
         public LogTimeStep(OpMode opMode, String name, double seconds) {
+            this(opMode, name, seconds, null);
+        }
+
+        // ... with a Timer that the given TimerWheel (if not null) tells when it's done
+        public LogTimeStep(OpMode opMode, String name, double seconds, TimerWheel wheel) {
             mOpMode = opMode;
             mName = name;
-            mTimer = new Timer(seconds);
+            mTimer = new Timer(seconds, wheel);
         }
 
         public boolean loop() {
@@ -177,6 +581,23 @@ public class AutoLib {
     }
 
 
+    // a Step that just waits until an Event is signaled
+    static public class WaitForEventStep extends Step {
+        Event mEvent;
+
+        public WaitForEventStep(Event event) {
+            mEvent = event;
+            waitFor(event);
+        }
+
+        public boolean loop() {
+            super.loop();
+            return mEvent.signaled();
+        }
+
+    }
+
+
     // a Step that runs a DcMotor at a given power, for a given time
     static public class TimedMotorStep extends Step {
         Timer mTimer;
@@ -185,9 +606,14 @@ public class AutoLib {
         boolean mStop;          // stop motor when count is reached
 
         public TimedMotorStep(DcMotor motor, double power, double seconds, boolean stop) {
+            this(motor, power, seconds, stop, null);
+        }
+
+        // ... with a Timer that the given TimerWheel (if not null) tells when it's done
+        public TimedMotorStep(DcMotor motor, double power, double seconds, boolean stop, TimerWheel wheel) {
             mMotor = motor;
             mPower = power;
-            mTimer = new Timer(seconds);
+            mTimer = new Timer(seconds, wheel);
             mStop = stop;
         }
 
@@ -198,6 +624,7 @@ public class AutoLib {
             if (firstLoopCall()) {
                 mTimer.start();
                 mMotor.setPower(mPower);
+                waitFor(mTimer);        // nothing to do until the Timer runs out
             }
 
             // run the motor at the requested power until the Timer runs out
@@ -270,10 +697,16 @@ public class AutoLib {
     static public class MoveByTime extends ConcurrentSequence {
 
         public MoveByTime(DcMotor fr, DcMotor br, DcMotor fl, DcMotor bl, double power, double seconds, boolean stop) {
-            this.add(new TimedMotorStep(fr, power, seconds, stop));
-            this.add(new TimedMotorStep(br, power, seconds, stop));
-            this.add(new TimedMotorStep(fl, power, seconds, stop));
-            this.add(new TimedMotorStep(bl, power, seconds, stop));
+            this(fr, br, fl, bl, power, seconds, stop, null);
+        }
+
+        // ... timed by the given TimerWheel (if not null)
+        public MoveByTime(DcMotor fr, DcMotor br, DcMotor fl, DcMotor bl, double power, double seconds, boolean stop, TimerWheel wheel) {
+            setScheduled(true);     // the motor Steps just wait on their Timers
+            this.add(new TimedMotorStep(fr, power, seconds, stop, wheel));
+            this.add(new TimedMotorStep(br, power, seconds, stop, wheel));
+            this.add(new TimedMotorStep(fl, power, seconds, stop, wheel));
+            this.add(new TimedMotorStep(bl, power, seconds, stop, wheel));
         }
 
     }
@@ -283,10 +716,16 @@ public class AutoLib {
     static public class TurnByTime extends ConcurrentSequence {
 
         public TurnByTime(DcMotor fr, DcMotor br, DcMotor fl, DcMotor bl, double rightPower, double leftPower, double seconds, boolean stop) {
-            this.add(new TimedMotorStep(fr, rightPower, seconds, stop));
-            this.add(new TimedMotorStep(br, rightPower, seconds, stop));
-            this.add(new TimedMotorStep(fl, leftPower, seconds, stop));
-            this.add(new TimedMotorStep(bl, leftPower, seconds, stop));
+            this(fr, br, fl, bl, rightPower, leftPower, seconds, stop, null);
+        }
+
+        // ... timed by the given TimerWheel (if not null)
+        public TurnByTime(DcMotor fr, DcMotor br, DcMotor fl, DcMotor bl, double rightPower, double leftPower, double seconds, boolean stop, TimerWheel wheel) {
+            setScheduled(true);     // the motor Steps just wait on their Timers
+            this.add(new TimedMotorStep(fr, rightPower, seconds, stop, wheel));
+            this.add(new TimedMotorStep(br, rightPower, seconds, stop, wheel));
+            this.add(new TimedMotorStep(fl, leftPower, seconds, stop, wheel));
+            this.add(new TimedMotorStep(bl, leftPower, seconds, stop, wheel));
         }
 
     }
@@ -318,18 +757,39 @@ public class AutoLib {
     }
 
 
-    // timer
-    static public class Timer {
+    // timer -- also a Wake condition that comes due when the Timer runs out.
+    // if it's given a TimerWheel, the wheel tells it when it's done, so done() is just a flag check
+    // instead of a clock read and some arithmetic -- but then the wheel's owner must keep tick()ing it.
+    static public class Timer implements Wake {
         long mStartTime;
         double mSeconds;
+        long mNanos;            // mSeconds, in nanoseconds
+
+        // the TimerWheel that tells us when we're done, if any, and our bookkeeping in it
+        TimerWheel mWheel;
+        long mExpireTick;       // wheel tick at which we're done
+        int mSlot;              // wheel slot we're linked into, or -1
+        Timer mPrev, mNext;     // neighbors in that slot's list
+        boolean mExpired;       // set by the wheel when we're done
 
         public Timer(double seconds) {
+            this(seconds, null);
+        }
+
+        public Timer(double seconds, TimerWheel wheel) {
             mStartTime = 0L;        // creation time is NOT start time
             mSeconds = seconds;
+            mNanos = (long) (seconds * TimeUnit.SECONDS.toNanos(1L));
+            mWheel = wheel;
+            mSlot = -1;
         }
 
         public void start() {
             mStartTime = System.nanoTime();
+            if (mWheel != null) {
+                mWheel.remove(this);    // in case we're restarting -- forget the old expiration
+                mWheel.add(this);
+            }
         }
 
         // return elapsed time in seconds since timer was created or restarted
@@ -342,8 +802,334 @@ public class AutoLib {
         }
 
         public boolean done() {
+            if (mWheel != null)
+                return mExpired;
             return (remaining() <= 0);
         }
+
+        public boolean due(long now) {
+            if (mWheel != null)
+                return mExpired;
+            return (now - mStartTime >= mNanos);
+        }
+    }
+
+
+    // a hierarchical timing wheel that keeps track of lots of running Timers at once.
+    // make one in your OpMode's init(), hand it to the Timers (and timed Steps) it should look after, and
+    // call tick() at the top of each loop(); started Timers register with it, and tick() marks the ones whose
+    // time has come -- a Timer whose wheel isn't ticked never finishes, so only give it to Steps this OpMode runs. A started Timer
+    // costs O(1) to add, and a tick costs O(1) plus the Timers it expires no matter how many are pending --
+    // there are LEVELS wheels of SLOTS slots each, and a Timer too far out for the finest wheel sits in a
+    // coarser one until that slot comes around, then drops down a level.
+    static public class TimerWheel {
+        static final int BITS = 6;
+        static final int SLOTS = 1 << BITS;     // slots per level
+        static final int MASK = SLOTS - 1;
+        static final int LEVELS = 4;            // 64^4 ticks -- 4.6 hours at 1ms/tick
+        static final long SPAN = 1L << (BITS * LEVELS);
+
+        long mTickNanos;        // length of a tick
+        long mTick;             // last tick processed
+        Timer[] mSlots;         // heads of the slot lists, LEVELS*SLOTS of them
+        int mPending;           // Timers waiting to expire
+        int mExpired;           // Timers expired by the last tick() ...
+        long mExpiredTotal;     // ... and in all
+
+        public TimerWheel(double tickSeconds) {
+            mTickNanos = Math.max(1L, (long) (tickSeconds * TimeUnit.SECONDS.toNanos(1L)));
+            mTick = System.nanoTime() / mTickNanos;
+            mSlots = new Timer[LEVELS * SLOTS];
+        }
+
+        // catch up to the current time, marking every Timer whose time has come
+        public void tick() {
+            tick(System.nanoTime());
+        }
+
+        public void tick(long now) {
+            long target = now / mTickNanos;
+            mExpired = 0;
+            if (mPending == 0) {        // nothing to do but keep time
+                if (target > mTick)
+                    mTick = target;
+                return;
+            }
+            while (mTick < target) {
+                mTick++;
+                // when a level wraps, the next slot up comes due -- spread its Timers over the levels below
+                for (int level = 1; level < LEVELS; level++) {
+                    if ((mTick & ((1L << (BITS * level)) - 1)) != 0)
+                        break;
+                    cascade(level * SLOTS + (int) ((mTick >>> (BITS * level)) & MASK));
+                }
+                expire((int) (mTick & MASK));
+            }
+            mExpiredTotal += mExpired;
+        }
+
+        // number of Timers still running
+        public int pending() { return mPending; }
+
+        // number of Timers expired by the last tick(), and since we started
+        public int expired() { return mExpired; }
+        public long expiredTotal() { return mExpiredTotal; }
+
+        // register a just-started Timer
+        void add(Timer t) {
+            long deadline = t.mStartTime + t.mNanos;
+            t.mExpireTick = (deadline + mTickNanos - 1) / mTickNanos;     // round up -- never early
+            t.mExpired = false;
+            mPending++;
+            place(t);
+        }
+
+        // forget about a Timer
+        void remove(Timer t) {
+            if (t.mSlot >= 0) {
+                unlink(t);
+                mPending--;
+            }
+        }
+
+        // link a Timer into the slot for its expiration tick, at the finest level that reaches that far
+        void place(Timer t) {
+            long delta = t.mExpireTick - mTick;
+            if (delta <= 0) {           // already due
+                t.mExpired = true;
+                mPending--;
+                mExpired++;
+                return;
+            }
+            long tick = (delta < SPAN) ? t.mExpireTick : mTick + SPAN - 1;    // park far-off ones at the horizon
+            int level = 0;
+            while (level < LEVELS - 1 && (tick - mTick) >= (1L << (BITS * (level + 1))))
+                level++;
+            int slot = level * SLOTS + (int) ((tick >>> (BITS * level)) & MASK);
+            Timer head = mSlots[slot];
+            t.mSlot = slot;
+            t.mPrev = null;
+            t.mNext = head;
+            if (head != null)
+                head.mPrev = t;
+            mSlots[slot] = t;
+        }
+
+        void unlink(Timer t) {
+            if (t.mPrev != null)
+                t.mPrev.mNext = t.mNext;
+            else
+                mSlots[t.mSlot] = t.mNext;
+            if (t.mNext != null)
+                t.mNext.mPrev = t.mPrev;
+            t.mPrev = t.mNext = null;
+            t.mSlot = -1;
+        }
+
+        // re-place every Timer in a coarse slot relative to the current tick
+        void cascade(int slot) {
+            Timer t = mSlots[slot];
+            mSlots[slot] = null;
+            while (t != null) {
+                Timer next = t.mNext;
+                t.mPrev = t.mNext = null;
+                t.mSlot = -1;
+                place(t);
+                t = next;
+            }
+        }
+
+        // mark every Timer in a finest-level slot done
+        void expire(int slot) {
+            Timer t = mSlots[slot];
+            mSlots[slot] = null;
+            while (t != null) {
+                Timer next = t.mNext;
+                t.mPrev = t.mNext = null;
+                t.mSlot = -1;
+                t.mExpired = true;
+                mPending--;
+                mExpired++;
+                t = next;
+            }
+        }
+    }
+
+
+    // a buffer for motor commands. wrap() each motor the OpMode drives and hand the Steps (and EncoderMotors)
+    // the stand-ins it returns: their power and mode changes wait here, and flush() at the end of each loop()
+    // sends them. Only the last value set for each motor in a cycle is sent, and not even that if it's what
+    // was sent last time -- so a Step that keeps setting the same power, or four Steps setting the same mode on
+    // four motors that already have it, cost nothing. An encoder reset is the exception: it's always sent, ahead
+    // of any mode set after it. Writes go out grouped by controller, so each controller's share of the cycle's
+    // commands goes out back to back (the SDK has no multi-port write, but the controller caches them and sends
+    // them together). Nothing reaches the motors without a flush(), so flush once more in
+    // stop() -- otherwise the last commands, like a final stop, never go out. The batch only touches motors
+    // wrapped by the OpMode that owns it; the motors in the hardwareMap are left as they are.
+    static public class MotorBatch {
+
+        // a stand-in for one motor, and what we know about it
+        static class Channel extends DcMotor {
+            DcMotor mMotor;
+            DcMotorController mController;
+            double mPower, mSentPower;
+            DcMotorController.RunMode mMode, mSentMode;
+            boolean mPowerSet, mModeSet;        // something was set this cycle
+            boolean mReset;                     // RESET_ENCODERS was set this cycle, whatever came after it
+            boolean mPowerKnown, mModeKnown;    // we know what was sent last
+
+            Channel(DcMotor motor) {
+                super(motor.getController(), motor.getPortNumber(), motor.getDirection());
+                mMotor = motor;
+                mController = motor.getController();
+            }
+
+            @Override
+            public void setPower(double power) {
+                mPower = power;
+                mPowerSet = true;
+            }
+
+            @Override       // what it will be after this cycle
+            public double getPower() {
+                return mPowerSet ? mPower : mMotor.getPower();
+            }
+
+            @Override
+            public void setMode(DcMotorController.RunMode mode) {
+                mMode = mode;
+                mModeSet = true;
+                if (mode == DcMotorController.RunMode.RESET_ENCODERS)
+                    mReset = true;
+            }
+
+            @Override       // ditto -- the encoder itself still only changes at flush()
+            public DcMotorController.RunMode getMode() {
+                return mModeSet ? mMode : mMotor.getMode();
+            }
+
+            @Override
+            public void setDirection(Direction direction) {
+                mMotor.setDirection(direction);
+            }
+
+            @Override
+            public Direction getDirection() {
+                return mMotor.getDirection();
+            }
+
+            @Override
+            public int getCurrentPosition() {
+                return mMotor.getCurrentPosition();
+            }
+        }
+
+        ArrayList<Channel> mChannels;       // kept grouped by controller
+        int mWrites;            // commands sent by the last flush() ...
+        int mSaved;             // ... and not sent because they changed nothing
+        int mBatches;           // ... and the number of controllers written to
+        long mWritesTotal;      // totals since we started
+        long mSavedTotal;
+
+        public MotorBatch() {
+            mChannels = new ArrayList<Channel>(8);
+        }
+
+        // returns a stand-in for the given motor whose power and mode changes wait here until flush() --
+        // wrapping the same motor again returns the same stand-in
+        public DcMotor wrap(DcMotor motor) {
+            int n = mChannels.size();
+            for (int i=0; i<n; i++) {
+                Channel c = mChannels.get(i);
+                if (c.mMotor == motor || c == motor)
+                    return c;
+            }
+            Channel c = new Channel(motor);
+            int at = n;                 // keep motors on the same controller together
+            for (int i=n-1; i>=0; i--)
+                if (mChannels.get(i).mController == c.mController) {
+                    at = i + 1;
+                    break;
+                }
+            mChannels.add(at, c);
+            return c;
+        }
+
+        // send this cycle's commands that change anything, a controller at a time -- mode before power,
+        // so a motor switched to using its encoder gets its power after the switch
+        public void flush() {
+            int writes = 0, saved = 0, batches = 0;
+            DcMotorController last = null;
+            boolean wrote = false;
+            for (int i=0; i<mChannels.size(); i++) {
+                Channel c = mChannels.get(i);
+                if (i == 0 || c.mController != last) {
+                    if (wrote)
+                        batches++;
+                    last = c.mController;
+                    wrote = false;
+                }
+                if (c.mReset) {                 // a reset is never coalesced away
+                    c.mMotor.setMode(DcMotorController.RunMode.RESET_ENCODERS);
+                    c.mSentMode = DcMotorController.RunMode.RESET_ENCODERS;
+                    c.mModeKnown = true;
+                    writes++;
+                    wrote = true;
+                    c.mReset = false;
+                    if (c.mMode == DcMotorController.RunMode.RESET_ENCODERS)
+                        c.mModeSet = false;
+                }
+                if (c.mModeSet) {
+                    if (c.mModeKnown && c.mMode == c.mSentMode)
+                        saved++;
+                    else {
+                        c.mMotor.setMode(c.mMode);
+                        c.mSentMode = c.mMode;
+                        c.mModeKnown = true;
+                        writes++;
+                        wrote = true;
+                    }
+                    c.mModeSet = false;
+                }
+                if (c.mPowerSet) {
+                    if (c.mPowerKnown && c.mPower == c.mSentPower)
+                        saved++;
+                    else {
+                        c.mMotor.setPower(c.mPower);
+                        c.mSentPower = c.mPower;
+                        c.mPowerKnown = true;
+                        writes++;
+                        wrote = true;
+                    }
+                    c.mPowerSet = false;
+                }
+            }
+            if (wrote)
+                batches++;
+            mWrites = writes;
+            mSaved = saved;
+            mBatches = batches;
+            mWritesTotal += writes;
+            mSavedTotal += saved;
+        }
+
+        // forget what we've sent, so everything set from now on gets sent at least once --
+        // use this if something else may have changed the motors behind our back
+        public void forget() {
+            for (Channel c : mChannels)
+                c.mPowerKnown = c.mModeKnown = false;
+        }
+
+        // commands sent and saved by the last flush(), controllers written to, and totals
+        public int writes() { return mWrites; }
+        public int saved() { return mSaved; }
+        public int batches() { return mBatches; }
+        public long writesTotal() { return mWritesTotal; }
+        public long savedTotal() { return mSavedTotal; }
+
+        public String toString() {
+            return "sent " + mWrites + " saved " + mSaved + " in " + mBatches + " batches (total sent " + mWritesTotal + " saved " + mSavedTotal + ")";
+        }
     }
 
 }
@@ -39,6 +39,8 @@ public class AutoMotorTest1 extends OpMode {
     AutoLib.Sequence mSequence;     // the root of the sequence tree
     boolean bDone;                  // true when the programmed sequence is done
     boolean bFirst;                 // true first time loop() is called
+    AutoLib.TimerWheel mWheel;      // keeps track of all the running Timers
+    AutoLib.MotorBatch mBatch;      // collects each cycle's motor commands
 
     DcMotor mFr, mBr, mFl, mBl;     // four drive motors (front right, back right, front left, back left)
     DcMotor mIo, mUd;               // two arm motors (in-out, up-down)
@@ -50,6 +52,8 @@ public class AutoMotorTest1 extends OpMode {
     }
 
     public void init() {
+        // the timed Steps' Timers register with this wheel, which ticks every millisecond
+        mWheel = new AutoLib.TimerWheel(0.001);
 
         if (debug) {
             // make some dummy motors that just log data
@@ -72,24 +76,34 @@ public class AutoMotorTest1 extends OpMode {
             mUd = hardwareMap.dcMotor.get("ud");
         }
 
+        // drive the motors through a batch -- the Steps' commands wait there, and we send the ones
+        // that change anything at the end of each loop()
+        mBatch = new AutoLib.MotorBatch();
+        mFr = mBatch.wrap(mFr);
+        mFl = mBatch.wrap(mFl);
+        mBr = mBatch.wrap(mBr);
+        mBl = mBatch.wrap(mBl);
+        mIo = mBatch.wrap(mIo);
+        mUd = mBatch.wrap(mUd);
+
         // create the root Sequence for this autonomous OpMode
         mSequence = new AutoLib.LinearSequence();
 
         // add a Step (actually, a ConcurrentSequence under the covers) that
         // drives all four motors forward at half power for 2 seconds
-        mSequence.add(new AutoLib.MoveByTime(mFr, mBr, mFl, mBl, 0.5, 2.0, false));
+        mSequence.add(new AutoLib.MoveByTime(mFr, mBr, mFl, mBl, 0.5, 2.0, false, mWheel));
 
         // create a second sequence that drives motors at different speeds
         // to turn left for 3 seconds, then stop all motors
-        mSequence.add(new AutoLib.TurnByTime(mFr, mBr, mFl, mBl, 0.5, 0.2, 3.0, true));
+        mSequence.add(new AutoLib.TurnByTime(mFr, mBr, mFl, mBl, 0.5, 0.2, 3.0, true, mWheel));
 
         // raise the arm using encoders while also extending it for 1 second
         AutoLib.ConcurrentSequence cs1 = new AutoLib.ConcurrentSequence();
         if (debug)
-            cs1.add(new AutoLib.TimedMotorStep(mUd, 0.75, 1.0, true)); // we don't support encoders yet in debug mode
+            cs1.add(new AutoLib.TimedMotorStep(mUd, 0.75, 1.0, true, mWheel)); // we don't support encoders yet in debug mode
         else
             cs1.add(new AutoLib.EncoderMotorStep(new EncoderMotor(mUd), 0.75, 1000, true));
-        cs1.add(new AutoLib.TimedMotorStep(mIo, 0.5, 1.0, true));
+        cs1.add(new AutoLib.TimedMotorStep(mIo, 0.5, 1.0, true, mWheel));
         mSequence.add(cs1);
 
         // start out not-done, first time
@@ -104,6 +118,9 @@ public class AutoMotorTest1 extends OpMode {
             bFirst = false;
         }
 
+        // let the Timers know which of them are done
+        mWheel.tick();
+
         // until we're done with the root Sequence, perform the current Step(s) each time through the loop
         if (!bDone) {
             bDone = mSequence.loop();       // returns true when we're done
@@ -111,9 +128,15 @@ public class AutoMotorTest1 extends OpMode {
             if (debug)
                 telemetry.addData("elapsed time", this.getRuntime());
         }
+
+        // send the motor commands the Steps gave us this time around
+        mBatch.flush();
+        if (debug)
+            telemetry.addData("motor writes", mBatch.toString());
     }
 
     public void stop() {
+        mBatch.flush();                     // send anything set since the last loop()
         telemetry.addData("stop() called", "");
     }
 }
@@ -14,6 +14,7 @@ public class AutoTest1 extends OpMode {
 
     AutoLib.Sequence mSequence;     // the root of the sequence tree
     boolean bDone;                  // true when the programmed sequence is done
+    AutoLib.TimerWheel mWheel;      // keeps track of all the running Timers
 
     public AutoTest1() {
         // create an AutoLib so we can call it to make stuff for us.
@@ -21,34 +22,40 @@ public class AutoTest1 extends OpMode {
     }
 
     public void init() {
+        // the timed Steps' Timers register with this wheel, which ticks every millisecond
+        mWheel = new AutoLib.TimerWheel(0.001);
+
         // create the root Sequence for this autonomous OpMode
         mSequence = new AutoLib.LinearSequence();
 
         // add a first simple Step to the root Sequence
-        mSequence.add(new AutoLib.LogTimeStep(this, "step1", 10));
+        mSequence.add(new AutoLib.LogTimeStep(this, "step1", 10, mWheel));
 
         // create a ConcurrentSequence with 3 concurrent Steps
         AutoLib.ConcurrentSequence cs1 = new AutoLib.ConcurrentSequence();
             // step 1 of the 3 concurrent steps
-            cs1.add(new AutoLib.LogTimeStep(this, "step2a", 10));
+            cs1.add(new AutoLib.LogTimeStep(this, "step2a", 10, mWheel));
             // step 2 is itself a LinearSequence of two Steps
             AutoLib.LinearSequence cs1a = new AutoLib.LinearSequence();
-                cs1a.add(new AutoLib.LogTimeStep(this, "step2b1", 6));
-                cs1a.add(new AutoLib.LogTimeStep(this, "step2b2", 9));
+                cs1a.add(new AutoLib.LogTimeStep(this, "step2b1", 6, mWheel));
+                cs1a.add(new AutoLib.LogTimeStep(this, "step2b2", 9, mWheel));
             cs1.add(cs1a);
             // step 3 is a simple Step
-            cs1.add(new AutoLib.LogTimeStep(this, "step2c", 5));
+            cs1.add(new AutoLib.LogTimeStep(this, "step2c", 5, mWheel));
         // add the ConcurrentSequence to the root Sequence
         mSequence.add(cs1);
 
         // finish up with another simple Step
-        mSequence.add(new AutoLib.LogTimeStep(this, "step3", 10));
+        mSequence.add(new AutoLib.LogTimeStep(this, "step3", 10, mWheel));
 
         // start out not-done
         bDone = false;
     }
 
     public void loop() {
+        // let the Timers know which of them are done
+        mWheel.tick();
+
         // until we're done, keep looping through the current Step(s)
         if (!bDone)
             bDone = mSequence.loop();       // returns true when we're done
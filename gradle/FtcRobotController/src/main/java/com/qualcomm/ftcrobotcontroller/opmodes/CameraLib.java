@@ -6,8 +6,22 @@ import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Library of utility classes that support acquiring images from the phone's camera
@@ -15,42 +29,124 @@ import java.util.List;
  */
 public class CameraLib {
 
-    // functional utility class that converts image in NV21 format to RGB
+    // a view of the luma (Y) and chroma (U, V) planes of a raw YUV 4:2:0 preview buffer in any of the layouts
+    // Android cameras deliver, without copying anything -- everything that reads frame data goes through one
+    // of these, so the camera can use whichever format it's fastest at. Chroma samples are addressed by
+    // chroma coordinates, i.e. (x/2, y/2) of the pixels in the 2x2 block they belong to.
+    // see http://www.fourcc.org/yuv.php for descriptions of the formats
+    static class YuvPlanes {
+        static final int NV21 = ImageFormat.NV21;   // Y plane, then interleaved V,U pairs (the Camera default)
+        static final int NV12 = 0x3231564e;         // Y plane, then interleaved U,V pairs (fourcc "NV12" --
+                                                    // there's no ImageFormat for it, but some decoders use it)
+        static final int YV12 = ImageFormat.YV12;   // Y plane, then V plane, then U plane, rows 16-byte aligned
+
+        byte[] mData;
+        int mFormat, mWidth, mHeight;
+        int mYStride;           // bytes from one row of luma to the next
+        int mUOffset, mVOffset; // index of the first U and V samples
+        int mChromaStride;      // bytes from one row of chroma samples to the next
+        int mChromaStep;        // bytes from one chroma sample to the next along a row (2 interleaved, 1 planar)
+
+        public YuvPlanes(byte[] data, int format, int width, int height) {
+            set(data, format, width, height);
+        }
+
+        // point this view at another buffer (and/or layout) -- allocates nothing
+        public void set(byte[] data, int format, int width, int height) {
+            mData = data;
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+            if (format == YV12) {               // as documented for ImageFormat.YV12
+                mYStride = align16(width);
+                mChromaStride = align16(mYStride / 2);
+                mChromaStep = 1;
+                mVOffset = mYStride * height;
+                mUOffset = mVOffset + mChromaStride * (height / 2);
+            }
+            else {
+                mYStride = width;
+                mChromaStride = width;
+                mChromaStep = 2;
+                int chroma = width * height;
+                mUOffset = (format == NV12) ? chroma : chroma + 1;
+                mVOffset = (format == NV12) ? chroma + 1 : chroma;
+            }
+        }
+
+        static int align16(int n) {
+            return (n + 15) & ~15;
+        }
+
+        // bytes in a frame of the given format and size
+        static int bufferSize(int format, int width, int height) {
+            if (format == YV12) {
+                int yStride = align16(width);
+                return yStride * height + 2 * align16(yStride / 2) * (height / 2);
+            }
+            return width * height * 3 / 2;
+        }
+
+        public int yIndex(int x, int y) { return y * mYStride + x; }
+        public int uIndex(int cx, int cy) { return mUOffset + cy * mChromaStride + cx * mChromaStep; }
+        public int vIndex(int cx, int cy) { return mVOffset + cy * mChromaStride + cx * mChromaStep; }
+
+        // samples (0..255) at the given camera pixel, or chroma coordinates for u() and v()
+        public int luma(int x, int y) { return mData[y * mYStride + x] & 0xff; }
+        public int u(int cx, int cy) { return mData[uIndex(cx, cy)] & 0xff; }
+        public int v(int cx, int cy) { return mData[vIndex(cx, cy)] & 0xff; }
+    }
+
+    // functional utility class that converts image in YUV 4:2:0 format (NV21 by default -- see YuvPlanes) to RGB
     static class NV21toRGB {
 
         static Bitmap convert(byte[] data, int imageWidth, int imageHeight) {
 
             // the bitmap we want to fill with the image
             Bitmap bitmap = Bitmap.createBitmap(imageWidth, imageHeight, Bitmap.Config.ARGB_8888);
-            int numPixels = imageWidth * imageHeight;
 
             // the buffer we fill up which we then fill the bitmap with
             IntBuffer intBuffer = IntBuffer.allocate(imageWidth * imageHeight);
-            // If you're reusing a buffer, next line imperative to refill from the start,
-            // if not good practice
-            intBuffer.position(0);
+            convert(data, imageWidth, imageHeight, intBuffer.array());
+
+            // Push the pixel information from the buffer onto the bitmap.
+            bitmap.copyPixelsFromBuffer(intBuffer);
+
+            return bitmap;
+        }
+
+        // convert the image into caller-supplied storage (imageWidth*imageHeight ints, in camera
+        // scanline order) so a caller that recycles its buffers doesn't allocate anything per frame
+        static void convert(byte[] data, int imageWidth, int imageHeight, int[] rgb) {
+            convert(new YuvPlanes(data, YuvPlanes.NV21, imageWidth, imageHeight), rgb);
+        }
+
+        // ... from a frame in any of the YuvPlanes formats
+        static void convert(YuvPlanes planes, int[] rgb) {
+
+            int imageWidth = planes.mWidth, imageHeight = planes.mHeight;
+            byte[] data = planes.mData;
 
             // Set the alpha for the image: 0 is transparent, 255 fully opaque
             final byte alpha = (byte) 255;
 
             // Get each pixel, one at a time
+            int i = 0;
             for (int y = 0; y < imageHeight; y++) {
                 for (int x = 0; x < imageWidth; x++) {
                     // Get the Y value, stored in the first block of data
                     // The logical "AND 0xff" is needed to deal with the signed issue
-                    int Y = data[y * imageWidth + x] & 0xff;
+                    int Y = data[planes.yIndex(x, y)] & 0xff;
 
                     // Get U and V values, stored after Y values, one per 2x2 block
-                    // of pixels, interleaved. Prepare them as floats with correct range
+                    // of pixels (where exactly depends on the format). Prepare them as floats with correct range
                     // ready for calculation later.
                     int xby2 = x / 2;
                     int yby2 = y / 2;
 
-                    // change this to V for NV12/420SP
-                    float U = (float) (data[numPixels + 2 * xby2 + yby2 * imageWidth] & 0xff) - 128.0f;
+                    float U = (float) (data[planes.uIndex(xby2, yby2)] & 0xff) - 128.0f;
 
-                    // change this to U for NV12/420SP
-                    float V = (float) (data[numPixels + 2 * xby2 + 1 + yby2 * imageWidth] & 0xff) - 128.0f;
+                    float V = (float) (data[planes.vIndex(xby2, yby2)] & 0xff) - 128.0f;
 
                     // Do the YUV -> RGB conversion
                     float Yf = 1.164f * ((float) Y) - 16.0f;
@@ -64,17 +160,83 @@ public class CameraLib {
                     B = B < 0 ? 0 : B > 255 ? 255 : B;
 
                     // Put that pixel in the buffer
-                    intBuffer.put((alpha << 24) + (R << 16) + (G << 8) + B);
+                    rgb[i++] = (alpha << 24) + (R << 16) + (G << 8) + B;
                 }
             }
+        }
 
-            // Get buffer ready to be read
-            intBuffer.flip();
+        // fixed-point versions of the coefficients used above, scaled by 2^16
+        static final int FIX_Y = 76284;         // 1.164
+        static final int FIX_Y_OFFSET = 16 << 16;
+        static final int FIX_RV = 104595;       // 1.596
+        static final int FIX_GV = 53281;        // 0.813
+        static final int FIX_GU = 25625;        // 0.391
+        static final int FIX_BU = 132252;       // 2.018
 
-            // Push the pixel information from the buffer onto the bitmap.
-            bitmap.copyPixelsFromBuffer(intBuffer);
+        // same conversion as convert() above (to within +/-1 per channel), but using integer arithmetic only
+        // and working on a 2x2 block of pixels at a time so each U/V sample is fetched and scaled just once.
+        static void convertFixed(byte[] data, int imageWidth, int imageHeight, int[] rgb) {
+            convertFixed(new YuvPlanes(data, YuvPlanes.NV21, imageWidth, imageHeight), rgb);
+        }
 
-            return bitmap;
+        static void convertFixed(YuvPlanes planes, int[] rgb) {
+            convertRows(planes, 0, planes.mHeight, rgb);
+        }
+
+        // convertFixed() of just the (camera) rows [y0..y1) -- y0 should be even
+        static void convertRows(YuvPlanes planes, int y0, int y1, int[] rgb) {
+            byte[] data = planes.mData;
+            int imageWidth = planes.mWidth, stride = planes.mYStride, step = planes.mChromaStep;
+            for (int y = y0; y < y1; y += 2) {
+                int row0 = y * imageWidth;                                  // first pixel of this row
+                int row1 = (y+1 < y1) ? row0 + imageWidth : row0;          // ... and of the next (if any)
+                int luma0 = y * stride;                                     // first luma sample of this row
+                int luma1 = (y+1 < y1) ? luma0 + stride : luma0;           // ... and of the next
+                int u = planes.uIndex(0, y >> 1), v = planes.vIndex(0, y >> 1);    // chroma shared by both rows
+                for (int x = 0; x < imageWidth; x += 2, u += step, v += step) {
+                    int U = (data[u] & 0xff) - 128;
+                    int V = (data[v] & 0xff) - 128;
+                    int rv = FIX_RV * V;
+                    int guv = -FIX_GV * V - FIX_GU * U;
+                    int bu = FIX_BU * U;
+
+                    int x1 = (x+1 < imageWidth) ? x+1 : x;
+                    rgb[row0 + x] = fixedPixel(data[luma0 + x], rv, guv, bu);
+                    rgb[row0 + x1] = fixedPixel(data[luma0 + x1], rv, guv, bu);
+                    rgb[row1 + x] = fixedPixel(data[luma1 + x], rv, guv, bu);
+                    rgb[row1 + x1] = fixedPixel(data[luma1 + x1], rv, guv, bu);
+                }
+            }
+        }
+
+        // fixed-point conversion of just the pixels [x0..x1) of the given (camera) row, for lazy decoding
+        static void convertSpan(YuvPlanes planes, int row, int x0, int x1, int[] rgb) {
+            byte[] data = planes.mData;
+            int base = row * planes.mWidth;
+            int luma = row * planes.mYStride;
+            int rv = 0, guv = 0, bu = 0;
+            for (int x = x0; x < x1; x++) {
+                if ((x & 1) == 0 || x == x0) {      // new chroma pair (or first pixel of an odd-aligned span)
+                    int U = (data[planes.uIndex(x >> 1, row >> 1)] & 0xff) - 128;
+                    int V = (data[planes.vIndex(x >> 1, row >> 1)] & 0xff) - 128;
+                    rv = FIX_RV * V;
+                    guv = -FIX_GV * V - FIX_GU * U;
+                    bu = FIX_BU * U;
+                }
+                rgb[base + x] = fixedPixel(data[luma + x], rv, guv, bu);
+            }
+        }
+
+        // combine one luma sample with the pre-scaled chroma terms of its 2x2 block into an opaque ARGB pixel
+        static int fixedPixel(byte luma, int rv, int guv, int bu) {
+            int Yf = FIX_Y * (luma & 0xff) - FIX_Y_OFFSET;
+            int R = (Yf + rv) >> 16;
+            int G = (Yf + guv) >> 16;
+            int B = (Yf + bu) >> 16;
+            R = R < 0 ? 0 : R > 255 ? 255 : R;
+            G = G < 0 ? 0 : G > 255 ? 255 : G;
+            B = B < 0 ? 0 : B > 255 ? 255 : B;
+            return 0xff000000 | (R << 16) | (G << 8) | B;
         }
     }
 
@@ -82,54 +244,77 @@ public class CameraLib {
     // a simple utility class that provides a few more operations on an RGB pixel encoded as an int
 // by extending the Android Color class that does most of what we need.
     static class Pixel extends Color {
-        static float[] mHSV = new float[3];     // scratch storage - allocated once at start-up
         public static String toString(int rgb) {
             return "pixel("+Color.red(rgb)+","+green(rgb)+","+blue(rgb)+")";
         }
         // return hue of given RGB pixel, discretized to 6 principal colors:
         // Red,Yellow,Green,Cyan,Blue,Magenta (1..6) or, if saturation < threshold, White(0)
         public static int hue(int pix) {
-            float[] hsv = RGBtoHSV(pix, mHSV);
-            if (hsv[1] < 0.20) {
-                return (int)(hsv[2] * 7 + 7);       // return Value discretized to 8 levels (7..14)
-            }
-            int iHue = ((int)hsv[0]+30)/60;         // round to nearest 60 degrees of hue
+            return hueInt(pix, 20);
+        }
+        // same, with a given saturation threshold (in percent) below which the pixel is considered a shade
+        // of gray (Value discretized to 8 levels, 7..14): the same steps as colorToHSV, but in ints with the
+        // divisions rearranged so nothing is rounded before the final discretization -- no JNI, no floats and
+        // no scratch storage, so it's safe to call from any number of threads at once.
+        // Gives exactly the same classes as the old float path for every RGB color at the default of 20%.
+        public static int hueInt(int pix, int satPercent) {
+            int r = (pix >> 16) & 0xff, g = (pix >> 8) & 0xff, b = pix & 0xff;
+            int max = Math.max(r, Math.max(g, b));
+            int delta = max - Math.min(r, Math.min(g, b));
+            if (delta * 100 < satPercent * max || delta == 0 && satPercent > 0)    // saturation < satPercent%
+                return max * 7 / 255 + 7;           // Value discretized to 8 levels (7..14)
+            if (delta == 0)
+                return 1;                           // colorToHSV calls grays hue 0 (red)
+            int h;                                  // hue in degrees, times delta
+            if (r == max)
+                h = 60 * (g - b);
+            else if (g == max)
+                h = 120 * delta + 60 * (b - r);
+            else
+                h = 240 * delta + 60 * (r - g);
+            if (h < 0)
+                h += 360 * delta;
+            int iHue = (h / delta + 30) / 60;       // round to nearest 60 degrees of hue
             if (iHue == 6)
-                iHue = 0;                           // red is either 0 or 360 degrees of hue
-            return iHue+1;          // return discretized hue RYGCBM (1..6)
+                iHue = 0;
+            return iHue + 1;
         }
         // return "dominant color" of an RGB pixel if it has one (or white if it doesn't)
         public static int dominantColor(int pix) {
-            final float n = 1.5F;    // dominance factor threshold
+            return dominantColor(pix, 1.5F);
+        }
+        // same, with a given dominance factor threshold n
+        public static int dominantColor(int pix, float n) {
+            int r = (pix >> 16) & 0xff, g = (pix >> 8) & 0xff, b = pix & 0xff;  // i.e. red(), green(), blue()
             int domClr = 0;     // default is white (i.e. shades of gray)
-            if (red(pix)>n*green(pix) && red(pix)>n*blue(pix))
+            if (r>n*g && r>n*b)
                 domClr = 1;     // red
             else
-            if (green(pix)>n*red(pix) && green(pix)>n*blue(pix))
+            if (g>n*r && g>n*b)
                 domClr = 3;     // green
             else
-            if (blue(pix)>n*red(pix) && blue(pix)>n*green(pix))
+            if (b>n*r && b>n*g)
                 domClr = 5;     // blue
             else
-            if (blue(pix)>n*red(pix) && green(pix)>n*red(pix))
+            if (b>n*r && g>n*r)
                 domClr = 4;     // cyan
             else
-            if (blue(pix)>n*green(pix) && red(pix)>n*green(pix))
+            if (b>n*g && r>n*g)
                 domClr = 6;     // magenta
             else
-            if (red(pix)>n*blue(pix) && green(pix)>n*blue(pix))
+            if (r>n*b && g>n*b)
                 domClr = 2;     // yellow
             // if it has no discernible hue, encode its gray level 0-7
             if (domClr == 0) {
-                float value = red(pix)*0.2f + green(pix)*0.7f + blue(pix)*0.1f; // 0..255
+                float value = r*0.2f + g*0.7f + b*0.1f; // 0..255
                 domClr = (int)(value / 32 + 7);  // return Value discretized to 8 levels (7..14)
             }
             return domClr;
         }
         // return string name of given color index
+        static final String COLOR_NAMES[] = {"w", "r", "y", "g", "c", "b", "m", "0","1","2","3","4","5","6","7"};
         public static String colorName(int i) {
-            String c[] = {"w", "r", "y", "g", "c", "b", "m", "0","1","2","3","4","5","6","7"};
-            return c[i];
+            return COLOR_NAMES[i];
         }
         public static float[] RGBtoHSV(int pix, float[] hsv) {
             // caller passes in return storage (hsv) to avoid lots of allocations
@@ -145,26 +330,201 @@ public class CameraLib {
         }
     }
 
-    // a simple wrapper around the data returned by the camera callback
-// assumes the data is in NV21 format (for now)
-// see http://www.fourcc.org/yuv.php#NV21 for descriptions of various formats
+    // a color classifier that precomputes Pixel.dominantColor and Pixel.hue for every RGB color quantized to
+    // a given number of bits per channel (5 -> 15-bit tables of 32K entries, 6 -> 18-bit tables of 256K),
+    // so classifying a pixel costs a few shifts and one array load. The tables are only rebuilt when the
+    // thresholds actually change.
+    static class ColorClassifier {
+        int mBits;              // bits per channel the tables are indexed by
+        int mShift;             // 8 - mBits
+        float mDominance;       // dominance factor for dominantColor (default 1.5)
+        double mSatCutoff;      // saturation below which hue() reports gray levels (default 0.20, used to the nearest 1%)
+        byte[] mDomTable;       // quantized RGB -> dominantColor
+        byte[] mHueTable;       // quantized RGB -> hue
+        int mBuildCount;        // number of times the tables have been built
+
+        public ColorClassifier(int bits) {
+            this(bits, 1.5F, 0.20);
+        }
+
+        public ColorClassifier(int bits, float dominance, double satCutoff) {
+            mBits = Math.max(1, Math.min(bits, 8));
+            mShift = 8 - mBits;
+            mDomTable = new byte[1 << (3*mBits)];
+            mHueTable = new byte[1 << (3*mBits)];
+            mBuildCount = 0;
+            mDominance = dominance;
+            mSatCutoff = satCutoff;
+            build();
+        }
+
+        // change the classification thresholds -- rebuilds the tables only if something changed
+        public void setThresholds(float dominance, double satCutoff) {
+            if (dominance == mDominance && satCutoff == mSatCutoff)
+                return;
+            mDominance = dominance;
+            mSatCutoff = satCutoff;
+            build();
+        }
+
+        void build() {
+            int satPercent = (int) Math.round(mSatCutoff * 100);
+            int levels = 1 << mBits;
+            int half = (mShift > 0) ? 1 << (mShift-1) : 0;     // classify the center of each quantization cell
+            int i = 0;
+            for (int r = 0; r < levels; r++)
+                for (int g = 0; g < levels; g++)
+                    for (int b = 0; b < levels; b++, i++) {
+                        int pix = 0xff000000 | (((r << mShift) | half) << 16) | (((g << mShift) | half) << 8) | ((b << mShift) | half);
+                        mDomTable[i] = (byte) Pixel.dominantColor(pix, mDominance);
+                        mHueTable[i] = (byte) Pixel.hueInt(pix, satPercent);
+                    }
+            mBuildCount++;
+        }
+
+        // index of the given RGB pixel in the tables
+        int index(int pix) {
+            int s = mShift, b = mBits;
+            return ((((pix >> 16) & 0xff) >> s) << (2*b)) | ((((pix >> 8) & 0xff) >> s) << b) | ((pix & 0xff) >> s);
+        }
+
+        public int dominantColor(int pix) {
+            return mDomTable[index(pix)];
+        }
+
+        public int hue(int pix) {
+            return mHueTable[index(pix)];
+        }
+
+        // classify pixels [from..to) of an RGB plane into the corresponding entries of classes
+        public void classify(int[] rgb, int from, int to, byte[] classes, boolean useHue) {
+            byte[] table = useHue ? mHueTable : mDomTable;
+            int s = mShift, b = mBits;
+            for (int i = from; i < to; i++) {
+                int pix = rgb[i];
+                classes[i] = table[((((pix >> 16) & 0xff) >> s) << (2*b)) | ((((pix >> 8) & 0xff) >> s) << b) | ((pix & 0xff) >> s)];
+            }
+        }
+    }
+
+    // a simple wrapper around a frame of image data, from the camera or any other FrameSource --
+// it depends only on the raw data and its dimensions, so it works the same on or off the phone.
+// the data may be in any of the YuvPlanes formats (NV21 unless told otherwise)
     static class CameraImage {
-        Camera.Size mSize;      // size of the camera that took this image
-        byte[] mData;           // data from Camera preview in NV21 format
-        Bitmap mBitmap;         // mData converted to RGB
+        int mWidth, mHeight;    // size of the image
+        byte[] mData;           // data from Camera preview ...
+        YuvPlanes mPlanes;      // ... and a view of its Y, U and V planes
+        int[] mRgb;             // mData converted to RGB in camera scanline order
+        boolean mLazy;          // if true, mRgb is only filled in as rows/rectangles are asked for
+        long mCaptureNanos;     // System.nanoTime() when the camera delivered the frame (0 if unknown)
+        int[] mRowLo, mRowHi;   // (lazy mode) span of columns [lo..hi) already decoded in each camera row
+        int mBase, mRowStride, mColStride;  // virtual (x,y) is at mRgb[mBase + y*mRowStride + x*mColStride]
+        int[] mRowPixels;       // scratch: one virtual row, for the scanline encoders
+        Histogram mHist;        // scratch storage for scanline encoding ...
+        SlidingHistogram mRolling;
+        byte[] mRowClasses;     // ... allocated the first time it's needed
+
+        public CameraImage(final byte[] imageData, int width, int height) {
+            this(imageData, width, height, YuvPlanes.NV21);
+        }
+
+        public CameraImage(final byte[] imageData, int width, int height, int format) {
+            this(width, height, format, imageData, new int[width * height], false);
+            convert();
+        }
+
+        // construct an image around recycled buffers (e.g. owned by a FramePool) -- the caller fills mData
+        // and calls convert() each time the buffers are reused. In lazy mode, convert() just forgets the
+        // previous frame and pixels are decoded on demand, so detectors that only look at a few scanlines
+        // don't pay for the whole frame.
+        CameraImage(int width, int height, byte[] imageData, int[] rgb, boolean lazy) {
+            this(width, height, YuvPlanes.NV21, imageData, rgb, lazy);
+        }
+
+        CameraImage(int width, int height, int format, byte[] imageData, int[] rgb, boolean lazy) {
+            mWidth = width;
+            mHeight = height;
+            mData = imageData;
+            mPlanes = new YuvPlanes(imageData, format, width, height);
+            mBase = width * height - 1;         // see getPixel: virtual (0,0) is the last camera pixel ...
+            mRowStride = -width;                // ... virtual rows go up the camera's rows ...
+            mColStride = -1;                    // ... and virtual columns go right-to-left along them
+            mRgb = rgb;
+            mLazy = lazy;
+            if (lazy) {
+                mRowLo = new int[height];
+                mRowHi = new int[height];
+            }
+        }
+
+        // (re)convert the current contents of mData into the recycled RGB plane
+        void convert() {
+            convert(null);
+        }
+
+        // ... splitting the work across threads if a RowParallel is given
+        void convert(RowParallel parallel) {
+            if (mLazy) {
+                for (int r=0; r<mHeight; r++)      // nothing decoded yet for this frame
+                    mRowLo[r] = mRowHi[r] = 0;
+            }
+            else if (parallel != null)
+                parallel.convert(mPlanes, mRgb);
+            else
+                NV21toRGB.convertFixed(mPlanes, mRgb);
+        }
 
-        public CameraImage(final byte[] imageData, Camera c) {
-            mData = imageData;      // reference to (readonly) image data
-            Camera.Parameters camParms = c.getParameters();
-            mSize = camParms.getPictureSize();
-            mBitmap = NV21toRGB.convert(mData, mSize.width, mSize.height);
+        // make sure columns [lo..hi) of the given camera row have been decoded -- if part of the row was
+        // already decoded, only the missing pieces are done (keeping one contiguous span per row)
+        void decodeSpan(int row, int lo, int hi) {
+            int dLo = mRowLo[row], dHi = mRowHi[row];
+            if (dLo <= lo && hi <= dHi)
+                return;                 // already have it
+            if (dLo >= dHi) {           // nothing decoded in this row yet
+                NV21toRGB.convertSpan(mPlanes, row, lo, hi, mRgb);
+                mRowLo[row] = lo;
+                mRowHi[row] = hi;
+                return;
+            }
+            if (lo < dLo) {
+                NV21toRGB.convertSpan(mPlanes, row, lo, dLo, mRgb);
+                mRowLo[row] = lo;
+            }
+            if (hi > dHi) {
+                NV21toRGB.convertSpan(mPlanes, row, dHi, hi, mRgb);
+                mRowHi[row] = hi;
+            }
+        }
+
+        // make sure the given (virtual, see getPixel) row is available -- a no-op unless in lazy mode
+        public void decodeRow(int y) {
+            if (mLazy)
+                decodeSpan(mHeight-1-y, 0, mWidth);
+        }
+
+        // make sure the given (virtual) rectangle [x0..x1) x [y0..y1) is available -- a no-op unless in lazy mode
+        public void decodeRect(int x0, int y0, int x1, int y1) {
+            if (!mLazy)
+                return;
+            int lo = mWidth - x1, hi = mWidth - x0;   // virtual x runs right-to-left in the camera row
+            for (int y = y0; y < y1; y++)
+                decodeSpan(mHeight-1-y, lo, hi);
         }
 
-        public Camera.Size cameraSize() {
-            return mSize;
+        public int width() { return mWidth; }
+        public int height() { return mHeight; }
+
+        // return the whole image as RGB in camera scanline order (i.e. NOT flipped as getPixel is),
+        // decoding whatever hasn't been decoded yet
+        public int[] rgbPlane() {
+            if (mLazy)
+                decodeRect(0, 0, mWidth, mHeight);
+            return mRgb;
         }
 
         public int dataSize() { return mData.length; }
+        public YuvPlanes planes() { return mPlanes; }
+        public long captureNanos() { return mCaptureNanos; }
 
         public String dataToString(int count) {
             String s = "";
@@ -184,152 +544,2302 @@ public class CameraLib {
         // but we will reverse that so our virtual scanlines still go (as before)
         // x: left-to-right  y: top-to-bottom
         public int getPixel(int x, int y) {
-            return mBitmap.getPixel(mSize.width-1-x, mSize.height-1-y);
+            if (mLazy) {
+                int row = mHeight-1-y;
+                if (mRowLo[row] != 0 || mRowHi[row] != mWidth)
+                    decodeSpan(row, 0, mWidth);     // decode the whole row the first time it's touched
+            }
+            return mRgb[mBase + y*mRowStride + x*mColStride];
         }
 
-        // return a string representation of the dominant colors along the given scanline
-        String scanlineDomColor(int y, int bandWidth) {
-            // scan the given horizontal line of the image for red, green, and blue strips and report
-            // dominant pixel color of each bandWidth-pixel band
-            Histogram hist = new Histogram(15);      // wrgbcym01234567
-            String sDom = "";               // string describing the line of pixels ito "dominant color"
-            for (int x=0; x<cameraSize().width; x++) {
-                int pix = getPixel(x, y);
-                int domClr = CameraLib.Pixel.dominantColor(pix);
-                if (x%bandWidth == (bandWidth-1)) {
-                    sDom += CameraLib.Pixel.colorName((bandWidth>1) ? hist.maxBin() : domClr);
-                        // add symbol string for most popular color in this band, either directly or from histogram
-                    hist.clear();                                // ... and restart the histogram for the next band
-                }
-                else
-                    hist.add(domClr);                            // add a sample to Histogram for this band
+        // copy virtual row y (left-to-right) into out[offset..offset+width)
+        public void getRow(int y, int[] out, int offset) {
+            decodeRow(y);
+            int[] rgb = mRgb;
+            int i = mBase + y*mRowStride, step = mColStride;
+            for (int x = 0; x < mWidth; x++, i += step)
+                out[offset + x] = rgb[i];
+        }
+
+        // copy the virtual rectangle [x0..x1) x [y0..y1) into out, row by row, (x1-x0) pixels per row
+        public void getRect(int x0, int y0, int x1, int y1, int[] out) {
+            decodeRect(x0, y0, x1, y1);
+            int[] rgb = mRgb;
+            int step = mColStride, o = 0;
+            for (int y = y0; y < y1; y++) {
+                int i = mBase + y*mRowStride + x0*step;
+                for (int x = x0; x < x1; x++, i += step)
+                    out[o++] = rgb[i];
             }
-            return sDom;
+        }
+
+        // the scratch row buffer, filled with virtual row y
+        int[] rowPixels(int y) {
+            if (mRowPixels == null)
+                mRowPixels = new int[mWidth];
+            getRow(y, mRowPixels, 0);
+            return mRowPixels;
         }
 
         // return a string representation of the dominant colors along the given scanline
+        String scanlineDomColor(int y, int bandWidth) {
+            return scanlineDomColor(y, bandWidth, new ScanlineBands(mWidth / bandWidth)).toString();
+        }
+
+        // return a string representation of the dominant hues along the given scanline
         String scanlineHue(int y, int bandWidth) {
+            return scanlineHue(y, bandWidth, new ScanlineBands(mWidth / bandWidth)).toString();
+        }
+
+        // encode the dominant colors along the given scanline into bands -- allocates nothing
+        public ScanlineBands scanlineDomColor(int y, int bandWidth, ScanlineBands bands) {
+            return scanlineBands(y, bandWidth, false, bands);
+        }
+
+        // encode the dominant hues along the given scanline into bands -- allocates nothing
+        public ScanlineBands scanlineHue(int y, int bandWidth, ScanlineBands bands) {
+            return scanlineBands(y, bandWidth, true, bands);
+        }
+
+        // fill out[x] with the most popular dominant color (or hue) of the window pixels wide centered on
+        // each pixel x of the given scanline -- a rolling version of the bands above, at the same per-pixel cost
+        public void scanlineRolling(int y, int window, boolean useHue, byte[] out) {
+            if (mRowClasses == null)
+                mRowClasses = new byte[mWidth];
+            int half = window / 2;
+            if (mRolling == null || mRolling.mWindow < 2 * half + 1)
+                mRolling = new SlidingHistogram(15, 2 * half + 1);     // pixels x-half .. x+half
+            byte[] classes = mRowClasses;
+            int[] row = rowPixels(y);
+            for (int x=0; x<mWidth; x++) {
+                int pix = row[x];
+                classes[x] = (byte) (useHue ? CameraLib.Pixel.hue(pix) : CameraLib.Pixel.dominantColor(pix));
+            }
+            SlidingHistogram hist = mRolling;
+            hist.clear();
+            for (int x=0; x<half && x<mWidth; x++)
+                hist.add(classes[x]);                           // prime the window to the right of pixel 0
+            for (int x=0; x<mWidth; x++) {
+                if (x - half - 1 >= 0)
+                    hist.remove(classes[x - half - 1]);         // pixel leaving on the left ...
+                if (x + half < mWidth)
+                    hist.add(classes[x + half]);                // ... and entering on the right
+                out[x] = (byte) hist.mode();
+            }
+        }
+
+        ScanlineBands scanlineBands(int y, int bandWidth, boolean useHue, ScanlineBands bands) {
             // scan the given horizontal line of the image for red, green, and blue strips and report
-            // dominant pixel hue of each bandWidth-pixel band
-            Histogram hist = new Histogram(15);      // wrgbcym01234567
-            String sDom = "";               // string describing the line of pixels ito "dominant color"
-            for (int x=0; x<cameraSize().width; x++) {
-                int pix = getPixel(x, y);
-                int domClr = CameraLib.Pixel.hue(pix);            // or, use hue(pix) instead ...
+            // dominant pixel color (or hue) of each bandWidth-pixel band
+            if (mHist == null)
+                mHist = new Histogram(15);      // wrgbcym01234567 -- allocated once per image
+            Histogram hist = mHist;
+            hist.clear();
+            bands.mCount = 0;
+            int[] row = rowPixels(y);
+            for (int x=0; x<mWidth; x++) {
+                int pix = row[x];
+                int domClr = useHue ? CameraLib.Pixel.hue(pix) : CameraLib.Pixel.dominantColor(pix);
                 if (x%bandWidth == (bandWidth-1)) {
-                    sDom += CameraLib.Pixel.colorName((bandWidth>1) ? hist.maxBin() : domClr);
-                    // add symbol string for most popular color in this band, either directly or from histogram
+                    // record most popular color in this band, either directly or from histogram
+                    if (bandWidth > 1) {
+                        int bin = hist.maxBin();
+                        bands.add(bin, (float) hist.mHist[bin] / (bandWidth-1));
+                    }
+                    else
+                        bands.add(domClr, 1.0f);
                     hist.clear();                                // ... and restart the histogram for the next band
                 }
                 else
                     hist.add(domClr);                            // add a sample to Histogram for this band
             }
-            return sDom;
+            return bands;
         }
 
     }
 
-    // utility class that constructs a histogram of given data and reports various stats on it
-    static class Histogram {
-        int[] mHist;
-        public Histogram(int bins) {
-            mHist = new int[bins];
-            clear();
+    // the result of encoding a scanline into bands (see CameraImage.scanlineDomColor): the color class of
+    // each band and the fraction of the band's pixels that had that class. Owned and reused by the caller;
+    // turning it into text is a separate step, only needed when it's actually displayed.
+    static class ScanlineBands {
+        byte[] mClasses;        // color class of each band (see Pixel.colorName)
+        float[] mConfidence;    // fraction of each band's samples in its class
+        int mCount;             // number of bands filled in
+
+        public ScanlineBands(int maxBands) {
+            mClasses = new byte[maxBands];
+            mConfidence = new float[maxBands];
+            mCount = 0;
         }
-        public void clear() {
-            for (int i=0; i<mHist.length; i++)
-                mHist[i] = 0;
+
+        void add(int cls, float confidence) {
+            if (mCount < mClasses.length) {
+                mClasses[mCount] = (byte) cls;
+                mConfidence[mCount] = confidence;
+                mCount++;
+            }
         }
-        public void add(int sample) {
-            if (sample >= 0 && sample < mHist.length)
-                mHist[sample]++;
+
+        public int count() { return mCount; }
+        public int band(int i) { return mClasses[i]; }
+        public float confidence(int i) { return mConfidence[i]; }
+
+        // append the one-letter names of the bands' classes to sb
+        public StringBuilder render(StringBuilder sb) {
+            for (int i = 0; i < mCount; i++)
+                sb.append(Pixel.colorName(mClasses[i]));
+            return sb;
         }
-        public int maxBin() {
-            int mx = 0;
-            for (int i=1; i<mHist.length; i++)
-                if (mHist[i] > mHist[mx])
-                    mx = i;
-            return mx;
+
+        public String toString() {
+            return render(new StringBuilder(mCount)).toString();
         }
     }
 
-    // utility class that wraps up all the data and logic needed to acquire image frames from the camera
-    static class CameraAcquireFrames {
-        Camera mCamera;
-        SurfaceTexture mDummyTexture;
-        CameraImage mPreviewImage;
-        int mFrameCount;
-        boolean mNewFrame;
+    // utility class that splits per-pixel work on a frame (NV21 conversion, color classification) into
+    // horizontal stripes of rows and runs them on a fixed pool of worker threads, with the calling thread
+    // doing the first stripe itself. Frames smaller than a given number of pixels are just done serially.
+    static class RowParallel {
+        static final int[] PROFILE_THREADS = { 1, 2, 4 };  // thread counts profile() measures
 
-        public CameraAcquireFrames() {
-            mCamera = null;
-            mPreviewImage = null;
-            mDummyTexture = null;
-            mFrameCount = 0;
-            mNewFrame = false;
+        static final int CONVERT = 0;           // the jobs a Stripe knows how to do
+        static final int CLASSIFY_HUE = 1;
+        static final int CLASSIFY_DOMINANT = 2;
+
+        ExecutorService mExecutor;
+        Stripe[] mStripes;      // one per thread, allocated once
+        int mThreads;           // number of stripes (including the caller's) to split work into
+        int mMinPixels;         // frames with fewer pixels than this are processed serially
+        int mPending;           // stripes not yet finished in the current job (guarded by this) ...
+        Throwable mFailure;     // ... and the first thing one of them threw, if any (ditto)
+        long mLastNanos;        // latency of the most recent job
+        volatile long[] mProfileNanos;  // latency of the most recent profile(), for each of PROFILE_THREADS
+                                        // (a fresh array each time, so readers on other threads see a whole one)
+        ColorClassifier mClassifier;    // if not null, classify() uses its lookup tables instead of Pixel
+
+        // the work for one stripe of rows -- reused from frame to frame
+        class Stripe implements Runnable {
+            int mJob, mRow0, mRow1, mWidth, mHeight;
+            YuvPlanes mPlanes;
+            int[] mRgb;
+            byte[] mClasses;
+
+            public void run() {
+                Throwable failure = null;
+                try {
+                    if (mJob == CONVERT)
+                        NV21toRGB.convertRows(mPlanes, mRow0, mRow1, mRgb);
+                    else if (mClassifier != null)
+                        mClassifier.classify(mRgb, mRow0 * mWidth, mRow1 * mWidth, mClasses, mJob == CLASSIFY_HUE);
+                    else {
+                        int end = mRow1 * mWidth;
+                        for (int i = mRow0 * mWidth; i < end; i++)
+                            mClasses[i] = (byte)((mJob == CLASSIFY_HUE) ? Pixel.hue(mRgb[i]) : Pixel.dominantColor(mRgb[i]));
+                    }
+                } catch (Throwable t) {
+                    failure = t;            // the caller rethrows it once every stripe is done
+                } finally {
+                    synchronized (RowParallel.this) {
+                        if (failure != null && mFailure == null)
+                            mFailure = failure;
+                        if (--mPending == 0)
+                            RowParallel.this.notifyAll();
+                    }
+                }
+            }
         }
 
-        Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
-            public void onPreviewFrame(byte[] imageData, Camera camera) {
-                // process the frame and save results in member variables
-                // ...
-                mPreviewImage = new CameraImage(imageData, camera);
-                mNewFrame = true;
-                mFrameCount++;
+        public RowParallel(int threads, int minPixels) {
+            int maxThreads = Math.max(threads, PROFILE_THREADS[PROFILE_THREADS.length-1]);
+            // caller does one stripe itself; daemon threads, so a pool nobody shut down can't keep the app alive
+            mExecutor = Executors.newFixedThreadPool(maxThreads-1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RowParallel");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            mStripes = new Stripe[maxThreads];
+            for (int i=0; i<maxThreads; i++)
+                mStripes[i] = new Stripe();
+            mThreads = Math.max(threads, 1);
+            mMinPixels = minPixels;
+            mProfileNanos = new long[PROFILE_THREADS.length];
+        }
+
+        public void setThreads(int threads) {
+            mThreads = Math.max(1, Math.min(threads, mStripes.length));
+        }
+
+        // classify using the given lookup-table classifier (or Pixel's own functions, if null)
+        public void setClassifier(ColorClassifier classifier) {
+            mClassifier = classifier;
+        }
+
+        // convert a YUV frame into the given RGB plane (camera scanline order)
+        public void convert(YuvPlanes planes, int[] rgb) {
+            run(CONVERT, planes, planes.mWidth, planes.mHeight, rgb, null);
+        }
+
+        // classify every pixel of an RGB plane by hue (if useHue) or dominant color into classes
+        public void classify(int[] rgb, int width, int height, byte[] classes, boolean useHue) {
+            run(useHue ? CLASSIFY_HUE : CLASSIFY_DOMINANT, null, width, height, rgb, classes);
+        }
+
+        // run the same conversion and classification once with each of PROFILE_THREADS threads and
+        // record the per-frame latency of each in mProfileNanos (see profileToString)
+        public void profile(YuvPlanes planes, int[] rgb, byte[] classes, boolean useHue) {
+            int width = planes.mWidth, height = planes.mHeight;
+            int threads = mThreads;
+            long[] nanos = new long[PROFILE_THREADS.length];
+            for (int i=0; i<PROFILE_THREADS.length; i++) {
+                setThreads(PROFILE_THREADS[i]);
+                long start = System.nanoTime();
+                convert(planes, rgb);
+                classify(rgb, width, height, classes, useHue);
+                nanos[i] = System.nanoTime() - start;
             }
-        };
+            mThreads = threads;
+            mProfileNanos = nanos;
+        }
 
-        public boolean init(int iCamSize) {
-            try {
-                if (mCamera == null)        // make sure we don't already have it ...
-                    mCamera = Camera.open();
-                Camera.Parameters parameters = mCamera.getParameters();
-                List<Integer> previewFormats = parameters.getSupportedPreviewFormats();
-                parameters.setPreviewFormat(ImageFormat.NV21);       // choices are NV21(17) and YV12(842094169)
-                List<Camera.Size> previewSizes = parameters.getSupportedPictureSizes();
-                int iSize = previewSizes.size()-iCamSize;  // use ith-smallest size (i>0): e.g. (1)160x120, (2)176x144, (3)320x240 entry
-                parameters.setPreviewSize(previewSizes.get(iSize).width, previewSizes.get(iSize).height);
-                parameters.setPictureSize(previewSizes.get(iSize).width, previewSizes.get(iSize).height);
-                mCamera.setParameters(parameters);
-                mDummyTexture = new SurfaceTexture(1); // make a target texture with an arbitrary texture id
-                mCamera.setPreviewTexture(mDummyTexture);
-                mCamera.setPreviewCallback(mPreviewCallback);
-                mCamera.startPreview();
+        public String profileToString() {
+            long[] nanos = mProfileNanos;
+            String s = "";
+            for (int i=0; i<PROFILE_THREADS.length; i++)
+                s += PROFILE_THREADS[i] + "t:" + String.format("%.1f", nanos[i]/1.0e6) + "ms ";
+            return s;
+        }
+
+        // latency of the most recent convert() or classify() call in milliseconds
+        public double lastMillis() {
+            return mLastNanos / 1.0e6;
+        }
+
+        public void shutdown() {
+            mExecutor.shutdown();
+        }
+
+        void run(int job, YuvPlanes planes, int width, int height, int[] rgb, byte[] classes) {
+            long start = System.nanoTime();
+            int stripes = (width * height < mMinPixels) ? 1 : Math.min(mThreads, height);
+            synchronized (this) {
+                mPending = stripes;
             }
-            catch (Exception e) {
-                mCamera.release();
-                mCamera = null;
-                return false;
+            for (int i = 0; i < stripes; i++) {
+                Stripe stripe = mStripes[i];
+                stripe.mJob = job;
+                stripe.mPlanes = planes;
+                stripe.mRgb = rgb;
+                stripe.mClasses = classes;
+                stripe.mWidth = width;
+                stripe.mHeight = height;
+                stripe.mRow0 = (height * i / stripes) & ~1;     // keep stripes aligned to 2-row chroma blocks
+                stripe.mRow1 = (i == stripes-1) ? height : (height * (i+1) / stripes) & ~1;
+                if (i > 0) {
+                    try {
+                        mExecutor.execute(stripe);
+                    } catch (RejectedExecutionException e) {
+                        stripe.run();           // pool's been shut down -- do it ourselves
+                    }
+                }
             }
-            return true;
+            mStripes[0].run();                  // do our share of the work on this thread
+            boolean interrupted = false;
+            Throwable failure;
+            synchronized (this) {
+                while (mPending > 0) {          // the other stripes are still writing -- don't hand back half a frame
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                failure = mFailure;
+                mFailure = null;
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();     // let the caller see it once we're done
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+            mLastNanos = System.nanoTime() - start;
         }
+    }
 
-        public CameraImage loop() {
-            if (mNewFrame) {
-                mNewFrame = false;
-                // start another frame acquisition
-                try {
-                    mCamera.setPreviewCallback(mPreviewCallback);
-                    mCamera.startPreview();
+    // summed-area tables of an image's R, G, B and luma channels (and optionally of each hue class),
+    // built in a single pass per frame, after which the mean color or class count of any rectangle
+    // is answered in constant time -- so we can afford to test lots of candidate regions per frame.
+    // Tables are in camera scanline order; rectangles are given in the same (virtual) coordinates
+    // as CameraImage.getPixel, as [x0..x1) x [y0..y1).
+    static class IntegralImage {
+        static final int CLASSES = 7;   // hue classes we can count (white/gray 0, RYGCBM 1..6)
+
+        int mWidth, mHeight;
+        int mStride;                    // mWidth+1
+        int[] mRed, mGreen, mBlue, mLuma;   // each (mWidth+1)*(mHeight+1), with a zero top row and left column
+        int[][] mClassCounts;           // per-class tables, or null if not counting classes
+        ColorClassifier mClassifier;    // classifies pixels for mClassCounts
+        int[] mRowCounts;               // scratch: running per-class counts along a row
+
+        public IntegralImage(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mStride = width + 1;
+            int size = mStride * (height + 1);
+            mRed = new int[size];
+            mGreen = new int[size];
+            mBlue = new int[size];
+            mLuma = new int[size];
+            mClassCounts = null;
+            mRowCounts = new int[CLASSES];
+        }
+
+        // also count dominant-color classes (as classified by the given classifier) on subsequent builds
+        public void setClassifier(ColorClassifier classifier) {
+            mClassifier = classifier;
+            if (classifier != null && mClassCounts == null)
+                mClassCounts = new int[CLASSES][mRed.length];
+        }
+
+        // build the tables for the given frame, which must be mWidth x mHeight
+        public void build(CameraImage frame) {
+            int[] rgb = frame.rgbPlane();
+            byte[] yPlane = frame.mData;        // luma comes first, one byte per pixel ...
+            int yStride = frame.mPlanes.mYStride;   // ... but rows may be padded
+            int w = mWidth, stride = mStride;
+            for (int y = 0; y < mHeight; y++) {
+                int r = 0, g = 0, b = 0, l = 0;     // running sums along this row
+                int src = y * w, luma = y * yStride;
+                int above = y * stride + 1, dst = above + stride;
+                for (int x = 0; x < w; x++, src++, luma++, above++, dst++) {
+                    int pix = rgb[src];
+                    r += (pix >> 16) & 0xff;
+                    g += (pix >> 8) & 0xff;
+                    b += pix & 0xff;
+                    l += yPlane[luma] & 0xff;
+                    mRed[dst] = mRed[above] + r;
+                    mGreen[dst] = mGreen[above] + g;
+                    mBlue[dst] = mBlue[above] + b;
+                    mLuma[dst] = mLuma[above] + l;
                 }
-                catch (Exception e) {
-                    return null;
+            }
+            if (mClassifier != null)
+                buildClassCounts(rgb);
+        }
+
+        void buildClassCounts(int[] rgb) {
+            int w = mWidth, stride = mStride;
+            int[] n = mRowCounts;
+            for (int y = 0; y < mHeight; y++) {
+                for (int c = 0; c < CLASSES; c++)
+                    n[c] = 0;
+                int src = y * w;
+                int above = y * stride + 1, dst = above + stride;
+                for (int x = 0; x < w; x++, src++, above++, dst++) {
+                    int cls = mClassifier.dominantColor(rgb[src]);
+                    n[(cls < CLASSES) ? cls : 0]++;             // gray levels all count as white
+                    for (int c = 0; c < CLASSES; c++)
+                        mClassCounts[c][dst] = mClassCounts[c][above] + n[c];
                 }
             }
-            return mPreviewImage;       // may be null if no data ready yet
         }
 
-        public int frameCount() {
-            return mFrameCount;
+        // sum of the given table over the given (virtual) rectangle
+        int sum(int[] table, int x0, int y0, int x1, int y1) {
+            // virtual coordinates are flipped in both directions relative to the camera's
+            int cx0 = mWidth - x1, cx1 = mWidth - x0;
+            int cy0 = mHeight - y1, cy1 = mHeight - y0;
+            return table[cy1*mStride + cx1] - table[cy0*mStride + cx1] - table[cy1*mStride + cx0] + table[cy0*mStride + cx0];
         }
 
-        public void stop() {
-            mCamera.stopPreview();
-            mCamera.setPreviewCallback(null);
+        int mean(int[] table, int x0, int y0, int x1, int y1) {
+            int area = (x1 - x0) * (y1 - y0);
+            return (area > 0) ? sum(table, x0, y0, x1, y1) / area : 0;
+        }
+
+        public int meanRed(int x0, int y0, int x1, int y1) { return mean(mRed, x0, y0, x1, y1); }
+        public int meanGreen(int x0, int y0, int x1, int y1) { return mean(mGreen, x0, y0, x1, y1); }
+        public int meanBlue(int x0, int y0, int x1, int y1) { return mean(mBlue, x0, y0, x1, y1); }
+        public int meanLuma(int x0, int y0, int x1, int y1) { return mean(mLuma, x0, y0, x1, y1); }
+
+        // mean color of the rectangle as an opaque ARGB pixel
+        public int meanColor(int x0, int y0, int x1, int y1) {
+            return 0xff000000 | (meanRed(x0, y0, x1, y1) << 16) | (meanGreen(x0, y0, x1, y1) << 8) | meanBlue(x0, y0, x1, y1);
+        }
+
+        // number of pixels of the given dominant-color class (0 = white/gray, 1..6 = RYGCBM) in the rectangle
+        public int classCount(int cls, int x0, int y0, int x1, int y1) {
+            return (mClassCounts != null) ? sum(mClassCounts[cls], x0, y0, x1, y1) : 0;
+        }
+
+        // the most common dominant-color class in the rectangle
+        public int dominantClass(int x0, int y0, int x1, int y1) {
+            int best = 0, bestCount = -1;
+            for (int c = 0; c < CLASSES; c++) {
+                int n = classCount(c, x0, y0, x1, y1);
+                if (n > bestCount) {
+                    best = c;
+                    bestCount = n;
+                }
+            }
+            return best;
+        }
+    }
+
+    // connected-component ("blob") finder for the colored (RYGCBM) pixels of an image: each row is
+    // run-length encoded by dominant-color class, runs of the same class that overlap runs in the row above
+    // are merged with union-find, and each resulting blob reports its color, area, centroid and bounding box.
+    // All storage is primitive arrays allocated once for the given resolution, so detect() allocates nothing.
+    // Results are in the same (virtual) coordinates as CameraImage.getPixel.
+    static class BlobDetector {
+        int mWidth, mHeight;
+        ColorClassifier mClassifier;
+        byte[] mClasses;                // scratch: classified pixels of the current frame
+
+        // runs of the current frame
+        int mMaxRuns;
+        int mRunCount;
+        int[] mRunRow, mRunX0, mRunX1;  // camera row and column span [x0..x1) of each run
+        byte[] mRunColor;
+        int[] mParent;                  // union-find forest over runs
+        int[] mBlobOf;                  // blob index of each root run (or -1)
+
+        // blobs of the current frame
+        int mMaxBlobs;
+        int mBlobCount;
+        int[] mBlobColor, mBlobArea;
+        int[] mBlobSumX, mBlobSumY;     // for centroids
+        int[] mBlobMinX, mBlobMaxX, mBlobMinY, mBlobMaxY;
+        boolean mOverflow;              // true if the last frame had more runs or blobs than we have room for
+
+        public BlobDetector(int width, int height, ColorClassifier classifier) {
+            this(width, height, classifier, width * height / 4, 256);
+        }
+
+        public BlobDetector(int width, int height, ColorClassifier classifier, int maxRuns, int maxBlobs) {
+            mWidth = width;
+            mHeight = height;
+            mClassifier = classifier;
+            mClasses = new byte[width * height];
+            mMaxRuns = maxRuns;
+            mRunRow = new int[maxRuns];
+            mRunX0 = new int[maxRuns];
+            mRunX1 = new int[maxRuns];
+            mRunColor = new byte[maxRuns];
+            mParent = new int[maxRuns];
+            mBlobOf = new int[maxRuns];
+            mMaxBlobs = maxBlobs;
+            mBlobColor = new int[maxBlobs];
+            mBlobArea = new int[maxBlobs];
+            mBlobSumX = new int[maxBlobs];
+            mBlobSumY = new int[maxBlobs];
+            mBlobMinX = new int[maxBlobs];
+            mBlobMaxX = new int[maxBlobs];
+            mBlobMinY = new int[maxBlobs];
+            mBlobMaxY = new int[maxBlobs];
+        }
+
+        // find the blobs in the given frame, classifying its pixels with our ColorClassifier
+        public int detect(CameraImage frame) {
+            mClassifier.classify(frame.rgbPlane(), 0, mWidth * mHeight, mClasses, false);
+            return detect(mClasses);
+        }
+
+        // find the blobs in a plane of precomputed classes (camera scanline order, e.g. from RowParallel.classify)
+        public int detect(byte[] classes) {
+            mRunCount = 0;
+            mOverflow = false;
+            int prevStart = 0;                  // first run of the previous row
+            for (int row = 0; row < mHeight; row++) {
+                int rowStart = mRunCount;
+                int base = row * mWidth;
+                int runColor = 0, runStart = 0;
+                for (int x = 0; x <= mWidth; x++) {
+                    int cls = (x < mWidth) ? classes[base + x] : 0;
+                    if (cls > 6)
+                        cls = 0;                // gray levels are background, like white
+                    if (cls != runColor) {
+                        if (runColor != 0)
+                            addRun(row, runStart, x, runColor);
+                        runColor = cls;
+                        runStart = x;
+                    }
+                }
+                connectRows(prevStart, rowStart, mRunCount);
+                prevStart = rowStart;
+            }
+            collectBlobs();
+            return mBlobCount;
+        }
+
+        void addRun(int row, int x0, int x1, int color) {
+            if (mRunCount >= mMaxRuns) {
+                mOverflow = true;
+                return;
+            }
+            int i = mRunCount++;
+            mRunRow[i] = row;
+            mRunX0[i] = x0;
+            mRunX1[i] = x1;
+            mRunColor[i] = (byte) color;
+            mParent[i] = i;
+        }
+
+        // merge the runs [curStart..curEnd) of this row with overlapping same-colored runs [prevStart..curStart)
+        // of the previous row (both lists are in left-to-right order)
+        void connectRows(int prevStart, int curStart, int curEnd) {
+            int prevEnd = curStart;
+            int p = prevStart;
+            for (int c = curStart; c < curEnd; c++) {
+                while (p < prevEnd && mRunX1[p] <= mRunX0[c])
+                    p++;                                // skip previous-row runs entirely to our left
+                for (int q = p; q < prevEnd && mRunX0[q] < mRunX1[c]; q++)
+                    if (mRunColor[q] == mRunColor[c])
+                        union(q, c);
+            }
+        }
+
+        int find(int i) {
+            while (mParent[i] != i) {
+                mParent[i] = mParent[mParent[i]];      // path halving
+                i = mParent[i];
+            }
+            return i;
+        }
+
+        void union(int a, int b) {
+            int ra = find(a), rb = find(b);
+            if (ra < rb)
+                mParent[rb] = ra;
+            else if (rb < ra)
+                mParent[ra] = rb;
+        }
+
+        // accumulate the stats of each run into its blob
+        void collectBlobs() {
+            mBlobCount = 0;
+            for (int i = 0; i < mRunCount; i++) {
+                int root = find(i);
+                int b;
+                if (root == i) {                        // roots come before the rest of their runs
+                    if (mBlobCount >= mMaxBlobs) {
+                        mBlobOf[i] = -1;
+                        mOverflow = true;
+                        continue;
+                    }
+                    b = mBlobCount++;
+                    mBlobOf[i] = b;
+                    mBlobColor[b] = mRunColor[i];
+                    mBlobArea[b] = mBlobSumX[b] = mBlobSumY[b] = 0;
+                    mBlobMinX[b] = mBlobMinY[b] = Integer.MAX_VALUE;
+                    mBlobMaxX[b] = mBlobMaxY[b] = Integer.MIN_VALUE;
+                }
+                else if ((b = mBlobOf[root]) < 0)
+                    continue;
+                int x0 = mRunX0[i], x1 = mRunX1[i], len = x1 - x0, row = mRunRow[i];
+                mBlobArea[b] += len;
+                mBlobSumX[b] += (x0 + x1 - 1) * len / 2;
+                mBlobSumY[b] += row * len;
+                if (x0 < mBlobMinX[b]) mBlobMinX[b] = x0;
+                if (x1-1 > mBlobMaxX[b]) mBlobMaxX[b] = x1-1;
+                if (row < mBlobMinY[b]) mBlobMinY[b] = row;
+                if (row > mBlobMaxY[b]) mBlobMaxY[b] = row;
+            }
+        }
+
+        public int blobCount() { return mBlobCount; }
+        public int color(int b) { return mBlobColor[b]; }
+        public int area(int b) { return mBlobArea[b]; }
+
+        // centroid and bounding box, flipped from camera to virtual coordinates
+        public float centroidX(int b) { return mWidth - 1 - (float) mBlobSumX[b] / mBlobArea[b]; }
+        public float centroidY(int b) { return mHeight - 1 - (float) mBlobSumY[b] / mBlobArea[b]; }
+        public int left(int b) { return mWidth - 1 - mBlobMaxX[b]; }
+        public int right(int b) { return mWidth - 1 - mBlobMinX[b]; }
+        public int top(int b) { return mHeight - 1 - mBlobMaxY[b]; }
+        public int bottom(int b) { return mHeight - 1 - mBlobMinY[b]; }
+
+        // index of the largest blob of the given color class (1..6) with at least minArea pixels, or -1
+        public int largest(int color, int minArea) {
+            int best = -1;
+            for (int b = 0; b < mBlobCount; b++)
+                if (mBlobColor[b] == color && mBlobArea[b] >= minArea && (best < 0 || mBlobArea[b] > mBlobArea[best]))
+                    best = b;
+            return best;
+        }
+    }
+
+    // coarse-to-fine color target search: build a pyramid of half-, quarter- (and eighth-) size Y/U/V planes
+    // straight from the frame's YUV data, find blobs of the target color at the coarsest level, then look at
+    // only those regions of the full-resolution image to measure them exactly. The half-size level comes
+    // almost for free, since 4:2:0 chroma is already at that resolution. All buffers are reused from frame to frame.
+    static class ImagePyramid {
+        int mLevels;                    // levels including full resolution (2..4)
+        int mScale;                     // full-resolution pixels per coarsest-level pixel, each way
+        int mWidth, mHeight;            // full-resolution size
+        int[] mLevelWidth, mLevelHeight;    // [level] size (level 0 = full resolution)
+        byte[][] mY, mU, mV;            // [level] planes, in camera order (level 0 isn't stored -- it's the frame)
+        int[] mRgb;                     // coarsest level converted to RGB
+        ColorClassifier mClassifier;
+        BlobDetector mBlobs;            // runs on the coarsest level
+
+        // candidate regions of the last search, in full-resolution virtual coordinates [x0..x1) x [y0..y1),
+        // and what we found of the target color inside each one
+        int mMaxCandidates;
+        int mCandidates;
+        int[] mX0, mY0, mX1, mY1;
+        int[] mArea;
+        long[] mSumX, mSumY;
+
+        long mBuildNanos, mSearchNanos, mRefineNanos;   // time spent in each phase of the last search
+
+        public ImagePyramid(int width, int height, int levels, ColorClassifier classifier) {
+            mLevels = Math.max(2, Math.min(levels, 4));
+            mScale = 1 << (mLevels - 1);
+            mWidth = width;
+            mHeight = height;
+            mLevelWidth = new int[mLevels];
+            mLevelHeight = new int[mLevels];
+            mY = new byte[mLevels][];
+            mU = new byte[mLevels][];
+            mV = new byte[mLevels][];
+            for (int l = 0; l < mLevels; l++) {
+                int w = mLevelWidth[l] = width >> l;
+                int h = mLevelHeight[l] = height >> l;
+                if (l > 0) {
+                    mY[l] = new byte[w * h];
+                    mU[l] = new byte[w * h];
+                    mV[l] = new byte[w * h];
+                }
+            }
+            int cw = mLevelWidth[mLevels-1], ch = mLevelHeight[mLevels-1];
+            mRgb = new int[cw * ch];
+            mClassifier = classifier;
+            mBlobs = new BlobDetector(cw, ch, classifier);
+            mMaxCandidates = 16;
+            mX0 = new int[mMaxCandidates];
+            mY0 = new int[mMaxCandidates];
+            mX1 = new int[mMaxCandidates];
+            mY1 = new int[mMaxCandidates];
+            mArea = new int[mMaxCandidates];
+            mSumX = new long[mMaxCandidates];
+            mSumY = new long[mMaxCandidates];
+        }
+
+        // build the coarse levels from a frame's YUV data
+        public void build(YuvPlanes planes) {
+            // level 1: average each 2x2 block of luma; chroma is the frame's own
+            byte[] data = planes.mData;
+            int w = planes.mYStride, w1 = mLevelWidth[1], h1 = mLevelHeight[1], step = planes.mChromaStep;
+            byte[] y1 = mY[1], u1 = mU[1], v1 = mV[1];
+            for (int j = 0; j < h1; j++) {
+                int src = 2 * j * w, dst = j * w1, u = planes.uIndex(0, j), v = planes.vIndex(0, j);
+                for (int i = 0; i < w1; i++, src += 2, dst++, u += step, v += step) {
+                    y1[dst] = (byte) (((data[src] & 0xff) + (data[src+1] & 0xff) +
+                                       (data[src+w] & 0xff) + (data[src+w+1] & 0xff) + 2) >> 2);
+                    u1[dst] = data[u];
+                    v1[dst] = data[v];
+                }
+            }
+            // further levels: average 2x2 blocks of the level above, in all three planes
+            for (int l = 2; l < mLevels; l++) {
+                halve(mY[l-1], mLevelWidth[l-1], mY[l], mLevelWidth[l], mLevelHeight[l]);
+                halve(mU[l-1], mLevelWidth[l-1], mU[l], mLevelWidth[l], mLevelHeight[l]);
+                halve(mV[l-1], mLevelWidth[l-1], mV[l], mLevelWidth[l], mLevelHeight[l]);
+            }
+            // coarsest level to RGB, for the classifier
+            int c = mLevels - 1;
+            byte[] y = mY[c], u = mU[c], v = mV[c];
+            for (int i = 0; i < mRgb.length; i++) {
+                int U = (u[i] & 0xff) - 128, V = (v[i] & 0xff) - 128;
+                mRgb[i] = NV21toRGB.fixedPixel(y[i], NV21toRGB.FIX_RV * V,
+                        -NV21toRGB.FIX_GV * V - NV21toRGB.FIX_GU * U, NV21toRGB.FIX_BU * U);
+            }
+        }
+
+        static void halve(byte[] src, int srcWidth, byte[] dst, int w, int h) {
+            for (int j = 0; j < h; j++) {
+                int s = 2 * j * srcWidth, d = j * w;
+                for (int i = 0; i < w; i++, s += 2, d++)
+                    dst[d] = (byte) (((src[s] & 0xff) + (src[s+1] & 0xff) +
+                                      (src[s+srcWidth] & 0xff) + (src[s+srcWidth+1] & 0xff) + 2) >> 2);
+            }
+        }
+
+        // find regions of the given dominant color (1..6) at least minArea coarse pixels big, then measure
+        // that color inside each region (grown by margin full-resolution pixels) at full resolution.
+        // Returns the number of candidate regions; in lazy mode only those regions of the frame get decoded.
+        public int search(CameraImage frame, int color, int minArea, int margin) {
+            long t0 = System.nanoTime();
+            build(frame.mPlanes);
+            mBuildNanos = System.nanoTime() - t0;
+            return find(frame, color, minArea, margin);
+        }
+
+        // ... the same, but on the pyramid already built from this frame (e.g. to look for a second color) --
+        // the candidates of the previous search are replaced
+        public int find(CameraImage frame, int color, int minArea, int margin) {
+            long t1 = System.nanoTime();
+            mClassifier.classify(mRgb, 0, mRgb.length, mBlobs.mClasses, false);
+            mBlobs.detect(mBlobs.mClasses);
+            mCandidates = 0;
+            for (int b = 0; b < mBlobs.blobCount() && mCandidates < mMaxCandidates; b++) {
+                if (mBlobs.color(b) != color || mBlobs.area(b) < minArea)
+                    continue;
+                int i = mCandidates++;
+                mX0[i] = Math.max(0, mBlobs.left(b) * mScale - margin);
+                mY0[i] = Math.max(0, mBlobs.top(b) * mScale - margin);
+                mX1[i] = Math.min(mWidth, (mBlobs.right(b) + 1) * mScale + margin);
+                mY1[i] = Math.min(mHeight, (mBlobs.bottom(b) + 1) * mScale + margin);
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < mCandidates; i++)
+                refine(frame, i, color);
+            long t3 = System.nanoTime();
+            mSearchNanos = t2 - t1;
+            mRefineNanos = t3 - t2;
+            return mCandidates;
+        }
+
+        // count the pixels of the given color in candidate region i of the full-resolution frame
+        void refine(CameraImage frame, int i, int color) {
+            int x0 = mX0[i], y0 = mY0[i], x1 = mX1[i], y1 = mY1[i];
+            frame.decodeRect(x0, y0, x1, y1);
+            int[] rgb = frame.mRgb;
+            int w = mWidth;
+            int area = 0;
+            long sumX = 0, sumY = 0;
+            for (int y = y0; y < y1; y++) {
+                int base = (mHeight - 1 - y) * w + (w - 1);     // camera row of virtual row y, flipped
+                for (int x = x0; x < x1; x++)
+                    if (mClassifier.dominantColor(rgb[base - x]) == color) {
+                        area++;
+                        sumX += x;
+                        sumY += y;
+                    }
+            }
+            mArea[i] = area;
+            mSumX[i] = sumX;
+            mSumY[i] = sumY;
+        }
+
+        public int candidates() { return mCandidates; }
+        public int area(int i) { return mArea[i]; }
+        public float centroidX(int i) { return (mArea[i] > 0) ? (float) mSumX[i] / mArea[i] : (mX0[i] + mX1[i]) / 2f; }
+        public float centroidY(int i) { return (mArea[i] > 0) ? (float) mSumY[i] / mArea[i] : (mY0[i] + mY1[i]) / 2f; }
+        public int left(int i) { return mX0[i]; }
+        public int top(int i) { return mY0[i]; }
+        public int right(int i) { return mX1[i] - 1; }
+        public int bottom(int i) { return mY1[i] - 1; }
+
+        // index of the candidate with the largest full-resolution area, or -1 if there are none
+        public int largest() {
+            int best = -1;
+            for (int i = 0; i < mCandidates; i++)
+                if (best < 0 || mArea[i] > mArea[best])
+                    best = i;
+            return best;
+        }
+
+        // time spent in each phase of the last search, e.g. "build 0.31ms search 0.12ms refine 0.40ms"
+        public String report() {
+            return String.format("build %.2fms search %.2fms refine %.2fms",
+                    mBuildNanos / 1.0e6, mSearchNanos / 1.0e6, mRefineNanos / 1.0e6);
+        }
+    }
+
+    // finds a bright stripe (e.g. white tape on the mat) running roughly up and down the image, using only the
+    // luma plane: on every rowStep'th row it takes the integer 3x3 Sobel x-gradient, pairs the strongest
+    // rising edge with the strongest falling edge within maxWidth pixels after it, and takes the midpoint as
+    // a point on the line. A least-squares fit of x against y through those points (refit once without the
+    // points far from the first fit) gives the line's offset and angle. Allocates nothing per frame.
+    static class LineDetector {
+        int mWidth, mHeight;
+        int mRowStep;           // look at every rowStep'th row
+        int mMinGradient;       // weakest Sobel response (0..1020) that counts as an edge
+        int mMaxWidth;          // widest the stripe may be, in pixels
+        int mMinPoints;         // fewest rows the stripe must be found on
+        int[] mPointX, mPointY; // line centers found on each row, in virtual coordinates
+        boolean[] mUsed;        // whether each point survived the outlier pass
+        int mPoints;            // points found in the last frame
+        int mFitPoints;         // points used by the final fit
+        boolean mFound;
+        float mOffset;          // x of the line at the middle row, relative to the image center (+ = right)
+        float mAngle;           // degrees from vertical (+ = far (top) end of the line leans right)
+        long mLastNanos;        // time taken by the last detect()
+
+        public LineDetector(int width, int height, int rowStep, int minGradient, int maxWidth) {
+            mWidth = width;
+            mHeight = height;
+            mRowStep = Math.max(1, rowStep);
+            mMinGradient = minGradient;
+            mMaxWidth = maxWidth;
+            mMinPoints = 4;
+            int rows = height / mRowStep + 1;
+            mPointX = new int[rows];
+            mPointY = new int[rows];
+            mUsed = new boolean[rows];
+        }
+
+        public boolean detect(CameraImage frame) {
+            return detect(frame.mPlanes);
+        }
+
+        // look for the line in a frame (only the Y plane is read); returns true if found
+        public boolean detect(YuvPlanes planes) {
+            long start = System.nanoTime();
+            byte[] data = planes.mData;
+            int w = mWidth, stride = planes.mYStride;
+            mPoints = 0;
+            for (int row = 1; row < mHeight - 1; row += mRowStep) {
+                int above = (row - 1) * stride, here = row * stride, below = (row + 1) * stride;
+                int bestRise = 0, riseX = -1;
+                for (int x = 1; x < w - 1; x++) {       // strongest dark-to-light edge
+                    int g = gradient(data, above, here, below, x);
+                    if (g > bestRise) {
+                        bestRise = g;
+                        riseX = x;
+                    }
+                }
+                if (bestRise < mMinGradient)
+                    continue;
+                int bestFall = 0, fallX = -1;
+                int end = Math.min(w - 1, riseX + mMaxWidth + 1);
+                for (int x = riseX + 1; x < end; x++) { // ... and light-to-dark edge after it
+                    int g = -gradient(data, above, here, below, x);
+                    if (g > bestFall) {
+                        bestFall = g;
+                        fallX = x;
+                    }
+                }
+                if (bestFall < mMinGradient)
+                    continue;
+                int i = mPoints++;                      // stripe center, flipped to virtual coordinates
+                mPointX[i] = w - 1 - (riseX + fallX) / 2;
+                mPointY[i] = mHeight - 1 - row;
+                mUsed[i] = true;
+            }
+            mFound = fit() && refit(mMaxWidth / 2 + 1) && mFitPoints >= mMinPoints;
+            mLastNanos = System.nanoTime() - start;
+            return mFound;
+        }
+
+        // horizontal 3x3 Sobel response at column x of the row whose neighbors start at the given offsets
+        static int gradient(byte[] data, int above, int here, int below, int x) {
+            return (data[above+x+1] & 0xff) + 2 * (data[here+x+1] & 0xff) + (data[below+x+1] & 0xff)
+                 - (data[above+x-1] & 0xff) - 2 * (data[here+x-1] & 0xff) - (data[below+x-1] & 0xff);
+        }
+
+        // least-squares fit of x = a + b*y through the points still in use
+        boolean fit() {
+            long n = 0, sy = 0, sx = 0, syy = 0, sxy = 0;
+            for (int i = 0; i < mPoints; i++) {
+                if (!mUsed[i])
+                    continue;
+                long x = mPointX[i], y = mPointY[i];
+                n++;
+                sy += y;
+                sx += x;
+                syy += y * y;
+                sxy += x * y;
+            }
+            mFitPoints = (int) n;
+            long d = n * syy - sy * sy;
+            if (n < 2 || d == 0)
+                return false;
+            double b = (double) (n * sxy - sx * sy) / d;
+            double a = (sx - b * sy) / n;
+            mOffset = (float) (a + b * (mHeight - 1) / 2.0 - (mWidth - 1) / 2.0);
+            mAngle = (float) Math.toDegrees(Math.atan(-b));     // y grows downward, so the top leans right if b < 0
+            return true;
+        }
+
+        // drop the points more than tolerance pixels from the current fit and fit again
+        boolean refit(int tolerance) {
+            double b = -Math.tan(Math.toRadians(mAngle));
+            double a = mOffset + (mWidth - 1) / 2.0 - b * (mHeight - 1) / 2.0;
+            for (int i = 0; i < mPoints; i++)
+                mUsed[i] = Math.abs(mPointX[i] - (a + b * mPointY[i])) <= tolerance;
+            return fit();
+        }
+
+        public boolean found() { return mFound; }
+        public float offset() { return mOffset; }
+        public float angle() { return mAngle; }
+        public int points() { return mFitPoints; }
+        public double lastMillis() { return mLastNanos / 1.0e6; }
+    }
+
+    // records raw YUV camera frames, with their capture timestamps, into a preallocated memory-mapped
+    // ring file that FrameReplay can play back later (on the phone or on a desktop JVM). record() only copies
+    // the frame into one of a few staging buffers and returns; a background thread moves staged frames into
+    // the file, so the camera callback never waits on storage. Once the file is full the oldest frames are
+    // overwritten; if the staging buffers are full, the new frame is dropped (and counted) instead.
+    //
+    // file layout: a HEADER_SIZE header (see H_* offsets), then capacity slots, each SLOT_HEADER_SIZE bytes
+    // (long timestamp, int sequence number, int data length) followed by frameSize bytes of frame data.
+    static class FrameRecorder implements Runnable {
+        static final int MAGIC = 0x4e563231;    // "NV21"
+        static final int HEADER_SIZE = 64;
+        static final int SLOT_HEADER_SIZE = 16;
+        static final int H_MAGIC = 0;           // header field offsets
+        static final int H_WIDTH = 4;
+        static final int H_HEIGHT = 8;
+        static final int H_FRAME_SIZE = 12;
+        static final int H_CAPACITY = 16;
+        static final int H_FORMAT = 20;         // YuvPlanes format (0 in older files, meaning NV21)
+        static final int H_WRITTEN = 24;        // (long) total frames ever written
+        static final int STAGES = 4;            // number of staging buffers
+
+        RandomAccessFile mFile;
+        MappedByteBuffer mMap;
+        int mWidth, mHeight, mFormat, mFrameSize, mCapacity;
+        long mWritten;                  // frames written to the file so far (writer thread only)
+        byte[][] mStage;                // staging buffers, used as a single-producer single-consumer ring ...
+        long[] mStageTime;
+        int[] mStageLength;
+        volatile int mHead;             // ... written by record() ...
+        volatile int mTail;             // ... and emptied by the writer thread
+        volatile int mDropped;          // frames dropped because the writer fell behind
+        volatile String mError;         // if not null, why the recording may not have reached storage intact
+        Thread mThread;
+        volatile boolean mRunning;
+
+        public FrameRecorder(File file, int width, int height, int capacity) throws IOException {
+            this(file, width, height, YuvPlanes.NV21, capacity);
+        }
+
+        public FrameRecorder(File file, int width, int height, int format, int capacity) throws IOException {
+            mWidth = width;
+            mHeight = height;
+            mFormat = format;
+            mFrameSize = YuvPlanes.bufferSize(format, width, height);
+            mCapacity = capacity;
+            long size = HEADER_SIZE + (long) capacity * (SLOT_HEADER_SIZE + mFrameSize);
+            mFile = new RandomAccessFile(file, "rw");
+            mFile.setLength(size);
+            mMap = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mMap.putInt(H_MAGIC, MAGIC);
+            mMap.putInt(H_WIDTH, width);
+            mMap.putInt(H_HEIGHT, height);
+            mMap.putInt(H_FRAME_SIZE, mFrameSize);
+            mMap.putInt(H_CAPACITY, capacity);
+            mMap.putInt(H_FORMAT, format);
+            mMap.putLong(H_WRITTEN, 0);
+            mWritten = 0;
+            mStage = new byte[STAGES][mFrameSize];
+            mStageTime = new long[STAGES];
+            mStageLength = new int[STAGES];
+            mHead = mTail = 0;
+            mDropped = 0;
+            mRunning = true;
+            mThread = new Thread(this, "FrameRecorder");
+            mThread.start();
+        }
+
+        // (camera thread) queue a frame for recording; returns false if it had to be dropped
+        public boolean record(byte[] data, long timestamp) {
+            int head = mHead;
+            if (head - mTail >= STAGES) {
+                mDropped++;
+                return false;
+            }
+            int i = head % STAGES;
+            int length = Math.min(data.length, mFrameSize);
+            System.arraycopy(data, 0, mStage[i], 0, length);
+            mStageTime[i] = timestamp;
+            mStageLength[i] = length;
+            mHead = head + 1;               // publish it to the writer
+            LockSupport.unpark(mThread);
+            return true;
+        }
+
+        public void run() {
+            try {
+                write();
+            } catch (RuntimeException e) {
+                mError = "write failed: " + e;     // (e.g. the mapped file went away) -- nothing more gets written
+                mTail = mHead;
+            }
+        }
+
+        // move staged frames into the file until close()
+        void write() {
+            while (true) {
+                int tail = mTail;
+                if (tail == mHead) {
+                    if (!mRunning)
+                        break;
+                    LockSupport.park(this);
+                    continue;
+                }
+                int i = tail % STAGES;
+                int slot = HEADER_SIZE + (int) (mWritten % mCapacity) * (SLOT_HEADER_SIZE + mFrameSize);
+                mMap.putLong(slot, mStageTime[i]);
+                mMap.putInt(slot + 8, (int) mWritten);
+                mMap.putInt(slot + 12, mStageLength[i]);
+                mMap.position(slot + SLOT_HEADER_SIZE);
+                mMap.put(mStage[i], 0, mStageLength[i]);
+                mWritten++;
+                mMap.putLong(H_WRITTEN, mWritten);
+                mTail = tail + 1;           // staging buffer is free again
+            }
+        }
+
+        public int framesDropped() {
+            return mDropped;
+        }
+
+        // why the recording failed, or null if it hasn't (so far) -- worth showing in telemetry
+        public String error() {
+            return mError;
+        }
+
+        public boolean failed() {
+            return mError != null;
+        }
+
+        // finish writing whatever is staged and close the file; returns false if anything went wrong
+        // (see error()), in which case the file may be missing frames or not be on storage at all
+        public boolean close() {
+            mRunning = false;
+            LockSupport.unpark(mThread);
+            boolean interrupted = false;
+            while (mThread.isAlive()) {     // the writer only has a few staged frames left -- wait for it
+                try {
+                    mThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            try {
+                mMap.force();
+            } catch (RuntimeException e) {
+                if (mError == null)
+                    mError = "flush failed: " + e;
+            }
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                if (mError == null)
+                    mError = "close failed: " + e;
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            return (mError == null);
+        }
+    }
+
+    // plays back a file made by FrameRecorder, oldest frame first, through a (reused) CameraImage --
+    // needs no camera, so detectors can be regression-tested and benchmarked on real match footage
+    static class FrameReplay {
+        MappedByteBuffer mMap;
+        int mWidth, mHeight, mFrameSize, mCapacity;
+        long mFirst, mEnd;      // sequence numbers of the oldest frame in the file and one past the newest
+        long mNext;             // sequence number of the next frame next() will return
+        long mTimestamp;        // capture timestamp of the frame most recently returned by next()
+        CameraImage mImage;
+
+        public FrameReplay(File file, boolean lazy) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                mMap = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if (mMap.getInt(FrameRecorder.H_MAGIC) != FrameRecorder.MAGIC)
+                throw new IOException("not a frame recording: " + file);
+            mWidth = mMap.getInt(FrameRecorder.H_WIDTH);
+            mHeight = mMap.getInt(FrameRecorder.H_HEIGHT);
+            mFrameSize = mMap.getInt(FrameRecorder.H_FRAME_SIZE);
+            mCapacity = mMap.getInt(FrameRecorder.H_CAPACITY);
+            int format = mMap.getInt(FrameRecorder.H_FORMAT);
+            mEnd = mMap.getLong(FrameRecorder.H_WRITTEN);
+            mFirst = Math.max(0, mEnd - mCapacity);
+            mImage = new CameraImage(mWidth, mHeight, (format != 0) ? format : YuvPlanes.NV21,
+                                     new byte[mFrameSize], new int[mWidth * mHeight], lazy);
+            rewind();
+        }
+
+        public int width() { return mWidth; }
+        public int height() { return mHeight; }
+
+        public int frameCount() {
+            return (int) (mEnd - mFirst);
+        }
+
+        public void rewind() {
+            mNext = mFirst;
+        }
+
+        // return the next recorded frame (valid until the following call), or null at the end of the recording
+        public CameraImage next() {
+            if (mNext >= mEnd)
+                return null;
+            int slot = FrameRecorder.HEADER_SIZE + (int) (mNext % mCapacity) * (FrameRecorder.SLOT_HEADER_SIZE + mFrameSize);
+            mTimestamp = mMap.getLong(slot);
+            int length = mMap.getInt(slot + 12);
+            mMap.position(slot + FrameRecorder.SLOT_HEADER_SIZE);
+            mMap.get(mImage.mData, 0, length);
+            mImage.convert();
+            mNext++;
+            return mImage;
+        }
+
+        // capture timestamp (System.nanoTime() on the phone) of the frame most recently returned by next()
+        public long timestamp() {
+            return mTimestamp;
+        }
+    }
+
+    // a source of frames for the vision pipeline -- the phone's camera, a recording, a synthetic pattern ...
+    // so everything downstream of CameraImage can run (and be profiled) with or without a camera
+    interface FrameSource {
+        boolean start();            // returns false if the source can't be started
+        CameraImage next();         // the next frame (valid until the following call), or null if none is ready yet
+        boolean finished();         // true once the source has no more frames to give
+        int width();
+        int height();
+        void stop();
+    }
+
+    // frames from the phone's camera, via CameraAcquireFrames in buffer-pool mode
+    static class CameraFrameSource implements FrameSource {
+        CameraAcquireFrames mAcquirer;
+        int mCamSize, mPoolSize;
+        boolean mLazy;
+        int mLastFrame;             // frameCount() when we last returned a frame
+
+        public CameraFrameSource(int iCamSize, int poolSize, boolean lazy) {
+            mAcquirer = new CameraAcquireFrames();
+            mCamSize = iCamSize;
+            mPoolSize = poolSize;
+            mLazy = lazy;
+        }
+
+        public boolean start() {
+            mLastFrame = 0;
+            return mAcquirer.init(mCamSize, mPoolSize, mLazy);
+        }
+
+        public CameraImage next() {
+            int count = mAcquirer.frameCount();
+            if (count == mLastFrame)
+                return null;
+            mLastFrame = count;
+            return mAcquirer.loop();
+        }
+
+        public boolean finished() { return mAcquirer.mCamera == null; }
+        public int width() { return mAcquirer.mWidth; }
+        public int height() { return mAcquirer.mHeight; }
+        public void stop() { mAcquirer.stop(); }
+    }
+
+    // frames from a file made by FrameRecorder
+    static class FileFrameSource implements FrameSource {
+        File mFile;
+        boolean mLazy;
+        FrameReplay mReplay;
+
+        public FileFrameSource(File file, boolean lazy) {
+            mFile = file;
+            mLazy = lazy;
+        }
+
+        public boolean start() {
+            try {
+                mReplay = new FrameReplay(mFile, mLazy);
+            } catch (IOException e) {
+                mReplay = null;
+                return false;
+            }
+            return true;
+        }
+
+        public CameraImage next() { return mReplay.next(); }
+        public boolean finished() { return mReplay == null || mReplay.mNext >= mReplay.mEnd; }
+        public int width() { return mReplay.width(); }
+        public int height() { return mReplay.height(); }
+        public void stop() { mReplay = null; }
+    }
+
+    // a made-up test pattern: red and blue rectangles sliding across a gray gradient, with a white stripe
+    // down the middle. A few frames of it are rendered into NV21 up front and then replayed in a loop
+    // (as lazy images, so consumers decode only what they use, just as with the camera).
+    static class SyntheticFrameSource implements FrameSource {
+        static final int PATTERNS = 8;      // distinct frames rendered in advance
+
+        int mWidth, mHeight, mFormat, mFrames;
+        byte[][] mPatterns;
+        CameraImage mImage;
+        int mCount;                         // frames returned so far
+
+        // a source of the given size that delivers the given number of frames (or never ends, if frames < 0)
+        public SyntheticFrameSource(int width, int height, int frames) {
+            this(width, height, YuvPlanes.NV21, frames);
+        }
+
+        // ... in the given YuvPlanes format
+        public SyntheticFrameSource(int width, int height, int format, int frames) {
+            mWidth = width;
+            mHeight = height;
+            mFormat = format;
+            mFrames = frames;
+        }
+
+        public boolean start() {
+            int[] rgb = new int[mWidth * mHeight];
+            int size = YuvPlanes.bufferSize(mFormat, mWidth, mHeight);
+            mPatterns = new byte[PATTERNS][size];
+            for (int i = 0; i < PATTERNS; i++) {
+                render(rgb, i * mWidth / (2 * PATTERNS));
+                encode(rgb, new YuvPlanes(mPatterns[i], mFormat, mWidth, mHeight));
+            }
+            mImage = new CameraImage(mWidth, mHeight, mFormat, new byte[size], new int[mWidth * mHeight], true);
+            mCount = 0;
+            return true;
+        }
+
+        public CameraImage next() {
+            if (finished())
+                return null;
+            byte[] pattern = mPatterns[mCount++ % PATTERNS];
+            System.arraycopy(pattern, 0, mImage.mData, 0, pattern.length);
+            mImage.convert();
+            return mImage;
+        }
+
+        public boolean finished() { return mFrames >= 0 && mCount >= mFrames; }
+        public int width() { return mWidth; }
+        public int height() { return mHeight; }
+        public void stop() { mPatterns = null; }
+
+        // draw the pattern, with the rectangles shifted right by the given offset
+        void render(int[] rgb, int offset) {
+            int w = mWidth, h = mHeight;
+            for (int y = 0; y < h; y++)
+                for (int x = 0; x < w; x++) {
+                    int gray = 64 + 64 * x / w + 32 * y / h;
+                    int pix = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+                    if (x >= w/2 - w/40 && x < w/2 + w/40)
+                        pix = 0xffe0e0e0;                                       // white stripe
+                    if (y >= h/4 && y < h/2 && x >= w/8 + offset && x < w/4 + offset)
+                        pix = 0xffc02020;                                       // red rectangle
+                    if (y >= h/4 && y < h/2 && x >= 5*w/8 + offset && x < 3*w/4 + offset)
+                        pix = 0xff2020c0;                                       // blue rectangle
+                    rgb[y * w + x] = pix;
+                }
+        }
+
+        // the inverse of NV21toRGB (near enough): RGB -> luma plane plus one chroma pair per 2x2 block,
+        // taken from the block's top-left pixel
+        void encode(int[] rgb, YuvPlanes planes) {
+            int w = mWidth, h = mHeight;
+            byte[] data = planes.mData;
+            for (int y = 0; y < h; y++)
+                for (int x = 0; x < w; x++) {
+                    int pix = rgb[y * w + x];
+                    int r = (pix >> 16) & 0xff, g = (pix >> 8) & 0xff, b = pix & 0xff;
+                    int luma = (299 * r + 587 * g + 114 * b) / 1000;
+                    data[planes.yIndex(x, y)] = (byte) Math.min(255, (luma + 16) * 1000 / 1164);
+                    if ((x & 1) == 0 && (y & 1) == 0) {
+                        data[planes.uIndex(x / 2, y / 2)] = (byte) Math.max(0, Math.min(255, 128 + (b - luma) * 1000 / 2018));
+                        data[planes.vIndex(x / 2, y / 2)] = (byte) Math.max(0, Math.min(255, 128 + (r - luma) * 1000 / 1596));
+                    }
+                }
+        }
+    }
+
+    // headless driver for the whole detection pipeline -- pulls frames from any FrameSource, runs each
+    // stage on them and keeps per-stage timings, so the pipeline can be profiled on or off the robot
+    static class VisionHarness {
+        static final String[] STAGES = { "acquire", "decode", "classify", "blobs", "integral" };
+
+        ColorClassifier mClassifier;
+        BlobDetector mBlobs;            // (re)made whenever the frame size changes
+        IntegralImage mIntegral;
+        long[] mStageNanos;             // total time spent in each stage
+        int mFrames;
+        long mElapsedNanos;
+        int mBlobCount;                 // total blobs found, so the work can't be optimized away
+
+        public VisionHarness(ColorClassifier classifier) {
+            mClassifier = classifier;
+            mStageNanos = new long[STAGES.length];
+        }
+
+        // run up to maxFrames frames from the source through the pipeline
+        public void run(FrameSource source, int maxFrames) {
+            for (int i = 0; i < STAGES.length; i++)
+                mStageNanos[i] = 0;
+            mFrames = 0;
+            mBlobCount = 0;
+            if (!source.start())
+                return;
+            long start = System.nanoTime();
+            while (mFrames < maxFrames && !source.finished()) {
+                long t0 = System.nanoTime();
+                CameraImage frame = source.next();
+                if (frame == null) {
+                    Thread.yield();             // waiting for the camera
+                    continue;
+                }
+                long t1 = System.nanoTime();
+                if (mBlobs == null || mBlobs.mWidth != frame.width() || mBlobs.mHeight != frame.height()) {
+                    mBlobs = new BlobDetector(frame.width(), frame.height(), mClassifier);
+                    mIntegral = new IntegralImage(frame.width(), frame.height());
+                }
+                int[] rgb = frame.rgbPlane();
+                long t2 = System.nanoTime();
+                mClassifier.classify(rgb, 0, rgb.length, mBlobs.mClasses, false);
+                long t3 = System.nanoTime();
+                mBlobCount += mBlobs.detect(mBlobs.mClasses);
+                long t4 = System.nanoTime();
+                mIntegral.build(frame);
+                long t5 = System.nanoTime();
+                mStageNanos[0] += t1 - t0;
+                mStageNanos[1] += t2 - t1;
+                mStageNanos[2] += t3 - t2;
+                mStageNanos[3] += t4 - t3;
+                mStageNanos[4] += t5 - t4;
+                mFrames++;
+            }
+            mElapsedNanos = System.nanoTime() - start;
+            source.stop();
+        }
+
+        public double framesPerSecond() {
+            return (mElapsedNanos > 0) ? mFrames / (mElapsedNanos / 1.0e9) : 0;
+        }
+
+        // frames per second and mean time per frame spent in each stage
+        public String report() {
+            String s = String.format("%d frames, %.1f fps;", mFrames, framesPerSecond());
+            for (int i = 0; i < STAGES.length; i++)
+                s += String.format(" %s %.2fms", STAGES[i], mStageNanos[i] / 1.0e6 / Math.max(mFrames, 1));
+            return s;
+        }
+    }
+
+    // utility class that constructs a histogram of given data and reports various stats on it
+    static class Histogram {
+        int[] mHist;
+        public Histogram(int bins) {
+            mHist = new int[bins];
+            clear();
+        }
+        public void clear() {
+            for (int i=0; i<mHist.length; i++)
+                mHist[i] = 0;
+        }
+        public void add(int sample) {
+            if (sample >= 0 && sample < mHist.length)
+                mHist[sample]++;
+        }
+        public int maxBin() {
+            int mx = 0;
+            for (int i=1; i<mHist.length; i++)
+                if (mHist[i] > mHist[mx])
+                    mx = i;
+            return mx;
+        }
+    }
+
+    // a fixed set of recycled frame buffers for CameraAcquireFrames' buffer-pool mode --
+    // each slot pairs an NV21 buffer that we hand to the camera with the RGB plane it gets converted into,
+    // so once the pool is built, acquiring and converting frames allocates nothing.
+    static class FramePool {
+        CameraImage[] mImages;  // one per buffer
+        AtomicInteger mInUse;   // number of buffers holding a frame (i.e. not queued to the camera)
+        AtomicInteger mDropped; // frames replaced by a newer one before the client (or VisionWorker) saw them
+
+        public FramePool(int count, int width, int height, int format, boolean lazy) {
+            mImages = new CameraImage[count];
+            int bufferSize = YuvPlanes.bufferSize(format, width, height);
+            for (int i=0; i<count; i++)
+                mImages[i] = new CameraImage(width, height, format, new byte[bufferSize], new int[width*height], lazy);
+            mInUse = new AtomicInteger(0);
+            mDropped = new AtomicInteger(0);
+        }
+
+        // return the pool slot that owns the given buffer, or null if it's not one of ours
+        CameraImage find(byte[] data) {
+            for (CameraImage image : mImages)
+                if (image.mData == data)
+                    return image;
+            return null;
+        }
+    }
+
+    // the work a VisionWorker does on each frame -- results are preallocated by newResult() and reused,
+    // so analyze() should overwrite everything in the result it's given
+    interface FrameAnalyzer<T> {
+        T newResult();
+        void analyze(CameraImage frame, T result);
+    }
+
+    // lock-free triple buffer: one writer thread fills back() and publish()es it, while one reader thread
+    // calls latest() to get the most recently published item without ever waiting for the writer.
+    // Items published faster than the reader looks at them are simply overwritten.
+    static class TripleBuffer<T> {
+        static final int INDEX = 3;     // bits of mState holding the index of the shared "middle" item
+        static final int FRESH = 4;     // bit of mState set when the middle item hasn't been read yet
+
+        Object[] mItems;
+        long[] mStamps;         // a timestamp published along with each item
+        AtomicInteger mState;   // index of the middle item, plus FRESH flag
+        int mBack;              // index of the item owned by the writer
+        int mFront;             // index of the item owned by the reader
+
+        public TripleBuffer(T a, T b, T c) {
+            mItems = new Object[] { a, b, c };
+            mStamps = new long[3];
+            mFront = 0;
+            mState = new AtomicInteger(1);
+            mBack = 2;
+        }
+
+        // (writer) the item to fill in next
+        @SuppressWarnings("unchecked")
+        public T back() {
+            return (T) mItems[mBack];
+        }
+
+        // (writer) make the back item the newest one available to the reader
+        public void publish() {
+            mBack = mState.getAndSet(mBack | FRESH) & INDEX;
+        }
+
+        // ... along with a timestamp (e.g. when the data it came from was captured)
+        public void publish(long stamp) {
+            mStamps[mBack] = stamp;
+            publish();
+        }
+
+        // (reader) the newest published item -- valid until the next call to latest()
+        @SuppressWarnings("unchecked")
+        public T latest() {
+            if ((mState.get() & FRESH) != 0)
+                mFront = mState.getAndSet(mFront) & INDEX;
+            return (T) mItems[mFront];
+        }
+
+        // (reader) the timestamp published with the item last returned by latest()
+        public long latestStamp() {
+            return mStamps[mFront];
+        }
+    }
+
+    // a dedicated thread that decodes and analyzes camera frames, so slow frames never hold up the
+    // robot control loop. The camera callback hands each frame over through a single lock-free slot --
+    // if the worker hasn't started on the previous frame yet, that stale one is dropped -- and results
+    // come back through a TripleBuffer, so the OpMode always gets the newest one without blocking.
+    static class VisionWorker<T> implements Runnable {
+        CameraAcquireFrames mSource;        // where frames come from and go back to
+        FrameAnalyzer<T> mAnalyzer;
+        TripleBuffer<T> mResults;
+        AtomicReference<CameraImage> mInbox;    // newest frame the worker hasn't started on yet
+        Thread mThread;
+        volatile boolean mRunning;
+        volatile int mResultCount;          // number of results published so far
+        long mLastConsumed;                 // (OpMode thread) capture time of the last result handed out
+        volatile ChangeDetector mDetector;  // if not null, frames it says are unchanged aren't analyzed
+        volatile int mProfileInterval;      // if > 0, profile the source's RowParallel every this many results
+        byte[] mProfileClasses;             // scratch for profiling
+
+        public VisionWorker(CameraAcquireFrames source, FrameAnalyzer<T> analyzer) {
+            mSource = source;
+            mAnalyzer = analyzer;
+            mResults = new TripleBuffer<T>(analyzer.newResult(), analyzer.newResult(), analyzer.newResult());
+            mInbox = new AtomicReference<CameraImage>(null);
+            mResultCount = 0;
+        }
+
+        public void start() {
+            mRunning = true;
+            mThread = new Thread(this, "VisionWorker");
+            mThread.start();
+        }
+
+        // returns once the worker thread has exited -- it may be halfway through a frame that uses the
+        // source's RowParallel, which mustn't be shut down under it
+        public void stop() {
+            mRunning = false;
+            LockSupport.unpark(mThread);
+            boolean interrupted = false;
+            while (mThread.isAlive()) {
+                try {
+                    mThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();     // let the caller see it once we're done
+            CameraImage image = mInbox.getAndSet(null);
+            if (image != null)
+                mSource.recycle(image);
+        }
+
+        // (camera thread) hand over a new frame; returns false if it replaced one that never got analyzed
+        boolean offer(CameraImage image) {
+            CameraImage stale = mInbox.getAndSet(image);
+            LockSupport.unpark(mThread);
+            if (stale == null)
+                return true;
+            mSource.recycle(stale);
+            return false;
+        }
+
+        public void run() {
+            while (mRunning) {
+                CameraImage image = mInbox.getAndSet(null);
+                if (image == null) {
+                    LockSupport.park(this);     // wait for offer() (or stop()) to wake us up
+                    continue;
+                }
+                long start = System.nanoTime();
+                LatencyStats stats = mSource.mStats;
+                ChangeDetector detector = mDetector;
+                if (detector != null && !detector.changed(image)) {
+                    mSource.recycle(image);     // same scene as the current result -- let that one stand
+                    continue;
+                }
+                image.convert(mSource.mParallel);
+                stats.mark(LatencyStats.DECODE, image.mCaptureNanos);
+                mAnalyzer.analyze(image, mResults.back());
+                stats.mark(LatencyStats.ANALYZE, image.mCaptureNanos);
+                mResults.publish(image.mCaptureNanos);
+                mResultCount++;
+                ResolutionGovernor governor = mSource.mGovernor;
+                if (governor != null)
+                    governor.frameProcessed(image.mWidth, image.mHeight, System.nanoTime() - start);
+                profile(image);
+                mSource.recycle(image);
+            }
+        }
+
+        // (OpMode thread) the newest finished result -- never blocks; check resultCount() to see if there is one.
+        // The first time a result is returned counts as its consumption in the camera's LatencyStats.
+        public T latest() {
+            T result = mResults.latest();
+            long capture = mResults.latestStamp();
+            if (capture != mLastConsumed) {
+                mLastConsumed = capture;
+                mSource.mStats.mark(LatencyStats.CONSUME, capture);
+            }
+            return result;
+        }
+
+        // every so often, time the source's RowParallel on this (already analyzed) frame with 1, 2 and 4
+        // threads -- this overwrites the frame's RGB plane, so it goes after analysis and before recycling
+        void profile(CameraImage image) {
+            RowParallel parallel = mSource.mParallel;
+            int interval = mProfileInterval;
+            if (parallel == null || interval <= 0 || mResultCount % interval != 0)
+                return;
+            if (mProfileClasses == null || mProfileClasses.length != image.mWidth * image.mHeight)
+                mProfileClasses = new byte[image.mWidth * image.mHeight];
+            parallel.profile(image.mPlanes, image.mRgb, mProfileClasses, true);
+        }
+
+        // profile the source's RowParallel (see CameraAcquireFrames.setParallel) every given number of
+        // results, or never if 0 -- read the results with RowParallel.profileToString()
+        public void setProfileInterval(int results) {
+            mProfileInterval = results;
+        }
+
+        // skip analyzing frames the given detector says haven't changed (or analyze all of them, if null) --
+        // the previous result remains latest() in the meantime
+        public void setChangeDetector(ChangeDetector detector) {
+            mDetector = detector;
+        }
+
+        // number of frames skipped as unchanged
+        public int framesSkipped() {
+            ChangeDetector detector = mDetector;
+            return (detector != null) ? detector.framesSkipped() : 0;
+        }
+
+        // capture time of the frame the result last returned by latest() came from
+        public long latestCaptureNanos() {
+            return mResults.latestStamp();
+        }
+
+        public int resultCount() {
+            return mResultCount;
+        }
+    }
+
+    // a histogram over a sliding window of samples: add() the sample entering the window and remove()
+    // the one leaving it, and mode() is always the most popular bin, in constant time. Bins with equal counts
+    // are kept in doubly-linked lists per count, so a bin moves between adjacent lists in O(1) and the
+    // maximum count can only change by one per operation. Adding more than window samples throws, since
+    // dropping one would leave the histogram out of step with the samples later remove()d from it.
+    static class SlidingHistogram {
+        int[] mCount;           // samples in each bin
+        int[] mNext, mPrev;     // links between bins with the same count (-1 = none)
+        int[] mHead;            // first bin with each count (0..window), or -1
+        int mMaxCount;          // highest count of any bin
+        int mWindow;            // most samples allowed in at once ...
+        int mSize;              // ... and how many are in now
+
+        // bins: number of distinct sample values; window: most samples that will be in the histogram at once
+        public SlidingHistogram(int bins, int window) {
+            mCount = new int[bins];
+            mNext = new int[bins];
+            mPrev = new int[bins];
+            mHead = new int[window + 1];
+            mWindow = window;
+            clear();
+        }
+
+        public void clear() {
+            for (int c = 0; c < mHead.length; c++)
+                mHead[c] = -1;
+            for (int b = mCount.length-1; b >= 0; b--) {
+                mCount[b] = 0;
+                link(b, 0);
+            }
+            mMaxCount = 0;
+            mSize = 0;
+        }
+
+        public void add(int sample) {
+            if (sample < 0 || sample >= mCount.length)
+                return;
+            if (mSize == mWindow)
+                throw new IllegalStateException("sliding histogram window of " + mWindow + " overfilled");
+            int c = mCount[sample];
+            unlink(sample, c);
+            mSize++;
+            mCount[sample] = c + 1;
+            link(sample, c + 1);
+            if (c + 1 > mMaxCount)
+                mMaxCount = c + 1;
+        }
+
+        public void remove(int sample) {
+            if (sample < 0 || sample >= mCount.length || mCount[sample] == 0)
+                return;
+            int c = mCount[sample];
+            unlink(sample, c);
+            mSize--;
+            mCount[sample] = c - 1;
+            link(sample, c - 1);
+            if (mHead[mMaxCount] < 0)
+                mMaxCount--;                    // that was the only bin at the top
+        }
+
+        // the most popular bin (if several are tied, any one of them)
+        public int mode() {
+            return mHead[mMaxCount];
+        }
+
+        // the number of samples in the most popular bin
+        public int modeCount() {
+            return mMaxCount;
+        }
+
+        void link(int bin, int count) {
+            int head = mHead[count];
+            mPrev[bin] = -1;
+            mNext[bin] = head;
+            if (head >= 0)
+                mPrev[head] = bin;
+            mHead[count] = bin;
+        }
+
+        void unlink(int bin, int count) {
+            int prev = mPrev[bin], next = mNext[bin];
+            if (prev >= 0)
+                mNext[prev] = next;
+            else
+                mHead[count] = next;
+            if (next >= 0)
+                mPrev[next] = prev;
+        }
+    }
+
+    // cheap test of whether a frame is different enough from the last one we analyzed to be worth analyzing:
+    // compares the brightness (luma) at a sparse grid of points against the same points in the reference
+    // frame. A frame counts as changed if at least minChanged points moved by more than noise levels, or if
+    // maxSkips frames in a row were judged unchanged (so slow drift and missed changes get caught up).
+    // Changed frames become the new reference. Costs cols*rows byte reads per frame; allocates only when
+    // the frame size changes.
+    static class ChangeDetector {
+        int mCols, mRows;
+        int mNoise;             // luma difference (0..255) we put down to sensor noise
+        int mMinChanged;        // points that must differ by more than that for the frame to have changed
+        int mMaxSkips;          // most consecutive frames we'll call unchanged
+        int mWidth, mHeight;    // frame size (and luma row stride) the offsets were computed for
+        int mStride;
+        int[] mOffsets;         // index of each grid point in the Y plane
+        byte[] mReference;      // luma at each grid point in the last changed frame
+        boolean mHaveReference;
+        int mSkipsInARow;
+        int mLastChanged;       // points that differed in the last frame tested
+        volatile int mSkipped;  // frames judged unchanged so far
+        volatile int mTested;   // frames tested so far
+
+        public ChangeDetector(int cols, int rows, int noise, int minChanged, int maxSkips) {
+            mCols = cols;
+            mRows = rows;
+            mNoise = noise;
+            mMinChanged = minChanged;
+            mMaxSkips = maxSkips;
+            mOffsets = new int[cols * rows];
+            mReference = new byte[cols * rows];
+        }
+
+        // true if the frame should be analyzed; false if it's close enough to the reference to skip
+        public boolean changed(CameraImage frame) {
+            mTested++;
+            int stride = frame.mPlanes.mYStride;
+            if (frame.mWidth != mWidth || frame.mHeight != mHeight || stride != mStride) {
+                mWidth = frame.mWidth;
+                mHeight = frame.mHeight;
+                mStride = stride;
+                int i = 0;
+                for (int r=0; r<mRows; r++) {       // the center of each cell of the grid
+                    int y = (2*r + 1) * mHeight / (2*mRows);
+                    for (int c=0; c<mCols; c++)
+                        mOffsets[i++] = y * stride + (2*c + 1) * mWidth / (2*mCols);
+                }
+                mHaveReference = false;
+            }
+            byte[] data = frame.mData;
+            int[] offsets = mOffsets;
+            byte[] reference = mReference;
+            int changed = 0;
+            for (int i=0; i<offsets.length; i++) {
+                int diff = (data[offsets[i]] & 0xff) - (reference[i] & 0xff);
+                if (diff > mNoise || diff < -mNoise)
+                    changed++;
+            }
+            mLastChanged = changed;
+            if (mHaveReference && changed < mMinChanged && mSkipsInARow < mMaxSkips) {
+                mSkipsInARow++;
+                mSkipped++;
+                return false;
+            }
+            for (int i=0; i<offsets.length; i++)
+                reference[i] = data[offsets[i]];
+            mHaveReference = true;
+            mSkipsInARow = 0;
+            return true;
+        }
+
+        // forget the reference, so the next frame is analyzed whatever it looks like
+        public void reset() {
+            mHaveReference = false;
+        }
+
+        public int framesSkipped() { return mSkipped; }
+        public int framesTested() { return mTested; }
+        public int lastChangedPoints() { return mLastChanged; }
+    }
+
+    // rolling statistics of how long frames take to get through each stage of the vision path, measured from
+    // when the camera delivered them: latency percentiles over the last SAMPLES frames, frame rate over the
+    // last RATE_WINDOW, and how many captured frames never reached each stage. Each stage is marked by one
+    // thread only (the camera callback, the worker, the OpMode); anyone may read them. Marking a frame is a
+    // few array stores -- the sorting for percentiles only happens when someone asks for them.
+    static class LatencyStats {
+        static final int CAPTURE = 0;       // camera delivered the frame
+        static final int DECODE = 1;        // frame converted to RGB (or reset, in lazy mode)
+        static final int ANALYZE = 2;       // frame classified/analyzed and the result published
+        static final int CONSUME = 3;       // result (or image) first handed to the OpMode
+        static final int STAGES = 4;
+        static final String[] STAGE_NAMES = { "capture", "decode", "analyze", "consume" };
+        static final int SAMPLES = 128;     // latency samples kept per stage
+        static final int RATE_WINDOW = 16;  // frames the frame rate is measured over
+
+        int[][] mMicros;                // [stage] ring of latencies since capture, in microseconds
+        long[][] mTimes;                // [stage] ring of the times each stage was reached (writer only)
+        float[] mFps;                   // [stage] frame rate over the last RATE_WINDOW frames
+        AtomicIntegerArray mCounts;     // [stage] frames marked so far -- also publishes the entries above
+        int[] mScratch;                 // sorted copy of a ring, for percentiles
+
+        public LatencyStats() {
+            mMicros = new int[STAGES][SAMPLES];
+            mTimes = new long[STAGES][RATE_WINDOW];
+            mFps = new float[STAGES];
+            mCounts = new AtomicIntegerArray(STAGES);
+            mScratch = new int[SAMPLES];
+        }
+
+        // (the stage's own thread) a frame captured at captureNanos just got through the given stage
+        public void mark(int stage, long captureNanos) {
+            long now = System.nanoTime();
+            int n = mCounts.get(stage);
+            mMicros[stage][n % SAMPLES] = (captureNanos != 0) ? (int) ((now - captureNanos) / 1000) : 0;
+            long[] times = mTimes[stage];
+            long oldest = times[n % RATE_WINDOW];       // the time of the frame RATE_WINDOW ago ...
+            times[n % RATE_WINDOW] = now;               // ... is replaced by this one
+            if (n >= RATE_WINDOW)
+                mFps[stage] = RATE_WINDOW * 1e9f / (now - oldest);
+            mCounts.lazySet(stage, n + 1);
+        }
+
+        public int count(int stage) {
+            return mCounts.get(stage);
+        }
+
+        // captured frames that never got through the given stage (including ones still on the way)
+        public int dropped(int stage) {
+            return mCounts.get(CAPTURE) - mCounts.get(stage);
+        }
+
+        public float fps(int stage) {
+            return mFps[stage];
+        }
+
+        // the given percentile (0..100) of the recent latencies from capture to the given stage, in ms
+        public synchronized float percentileMillis(int stage, double percentile) {
+            int n = Math.min(mCounts.get(stage), SAMPLES);
+            if (n == 0)
+                return 0;
+            System.arraycopy(mMicros[stage], 0, mScratch, 0, n);
+            Arrays.sort(mScratch, 0, n);
+            int rank = (int) Math.ceil(percentile / 100 * n) - 1;      // nearest-rank percentile
+            return mScratch[Math.max(0, Math.min(rank, n - 1))] / 1000f;
+        }
+
+        // one stage's numbers, e.g. "12.3/20.1/31.0ms 14.8fps 3 dropped" (p50/p95/p99 latency)
+        public String report(int stage) {
+            return String.format("%.1f/%.1f/%.1fms %.1ffps ", percentileMillis(stage, 50),
+                                 percentileMillis(stage, 95), percentileMillis(stage, 99), fps(stage)) +
+                   dropped(stage) + " dropped";
+        }
+    }
+
+    // picks the camera size from the measured time it takes to process each frame: it steps down a size
+    // when the (smoothed) processing time goes over budget, and up a size when the time predicted for the
+    // next size up (scaled by pixel count) still leaves some headroom -- the gap between the two is what
+    // keeps it from flip-flopping between adjacent sizes. It only asks for a change; CameraAcquireFrames
+    // applies it between frames.
+    static class ResolutionGovernor {
+        static final double ALPHA = 0.2;        // weight of each new sample in the smoothed time
+        static final double UP_MARGIN = 0.75;   // only step up if the next size should take < 75% of budget
+        static final int SETTLE = 5;            // samples to skip after a change (caches, JIT, GC settle down)
+        static final int HISTORY = 8;           // number of size changes remembered for telemetry
+
+        int[] mWidths, mHeights;    // candidate sizes, smallest first
+        long mBudgetNanos;
+        volatile int mIndex;        // current size (written on the processing thread)
+        double mAverage;            // smoothed processing time (nanos) at the current size, or 0 if none yet
+        int mSamples;               // samples seen at the current size
+        AtomicInteger mRequest;     // size index waiting to be applied, or -1
+        int[] mHistory;             // ring of the last HISTORY sizes chosen ...
+        int mHistoryCount;          // ... and the number of sizes ever chosen (processing thread only)
+
+        // what telemetry reads from other threads, published whole: the size index in the high 32 bits and
+        // the smoothed time (microseconds, 0 until judged at this size) in the low -- one volatile so the
+        // two always go together -- and the history, rebuilt as a new String on each change
+        volatile long mSnapshot;
+        volatile String mHistoryText;
+
+        // sizes: widths and heights of the sizes we may use (any order); start with the one nearest
+        // startWidth x startHeight
+        public ResolutionGovernor(int[] widths, int[] heights, int startWidth, int startHeight, double budgetMillis) {
+            int n = widths.length;
+            mWidths = new int[n];
+            mHeights = new int[n];
+            for (int i=0; i<n; i++) {       // insertion sort by area -- there are only a dozen or so
+                int w = widths[i], h = heights[i], j = i;
+                for (; j > 0 && mWidths[j-1] * mHeights[j-1] > w * h; j--) {
+                    mWidths[j] = mWidths[j-1];
+                    mHeights[j] = mHeights[j-1];
+                }
+                mWidths[j] = w;
+                mHeights[j] = h;
+            }
+            mIndex = 0;
+            for (int i=1; i<n; i++)
+                if (Math.abs(mWidths[i]*mHeights[i] - startWidth*startHeight) <
+                    Math.abs(mWidths[mIndex]*mHeights[mIndex] - startWidth*startHeight))
+                    mIndex = i;
+            mBudgetNanos = (long) (budgetMillis * 1000000);
+            mRequest = new AtomicInteger(-1);
+            mHistory = new int[HISTORY];
+            mHistoryCount = 0;
+            choose(mIndex);
+        }
+
+        // (processing thread) report how long a frame of the given size took to process --
+        // frames of any other size than the current one (i.e. from before a change took effect) are ignored
+        public void frameProcessed(int width, int height, long nanos) {
+            if (width != mWidths[mIndex] || height != mHeights[mIndex])
+                return;
+            if (++mSamples <= SETTLE)
+                return;
+            mAverage = (mAverage == 0) ? nanos : mAverage + ALPHA * (nanos - mAverage);
+            publish();
+            if (mSamples < 2 * SETTLE)
+                return;                         // let the average build up before acting on it
+            if (mAverage > mBudgetNanos && mIndex > 0)
+                choose(mIndex - 1);
+            else if (mIndex + 1 < mWidths.length) {
+                double scale = (double) (mWidths[mIndex+1] * mHeights[mIndex+1]) / (mWidths[mIndex] * mHeights[mIndex]);
+                if (mAverage * scale < mBudgetNanos * UP_MARGIN)
+                    choose(mIndex + 1);
+            }
+        }
+
+        void choose(int index) {
+            mIndex = index;
+            mSamples = 0;
+            mAverage = 0;
+            mHistory[mHistoryCount % HISTORY] = index;
+            mHistoryCount++;
+            mHistoryText = buildHistory();
+            publish();
+            mRequest.set(index);
+        }
+
+        void publish() {
+            mSnapshot = ((long) mIndex << 32) | (long) (mAverage / 1000);
+        }
+
+        // (camera thread) the size index to switch to, or -1 if there's no change waiting
+        int takeRequest() {
+            return mRequest.getAndSet(-1);
+        }
+
+        public int width() { return mWidths[mIndex]; }
+        public int height() { return mHeights[mIndex]; }
+        public double averageMillis() { return (mSnapshot & 0xffffffffL) / 1000.0; }
+
+        // the current size and smoothed time, e.g. "320x240 18.5ms" ("320x240 settling" right after a change)
+        public String toString() {
+            long snapshot = mSnapshot;
+            int index = (int) (snapshot >>> 32);
+            long micros = snapshot & 0xffffffffL;
+            return mWidths[index] + "x" + mHeights[index] + ((micros == 0) ? " settling" : String.format(" %.1fms", micros / 1000.0));
+        }
+
+        // the sizes chosen so far, oldest first, e.g. "176x144>320x240>640x480>320x240"
+        public String historyToString() {
+            return mHistoryText;
+        }
+
+        String buildHistory() {
+            StringBuilder sb = new StringBuilder();
+            int first = Math.max(0, mHistoryCount - HISTORY);
+            for (int i = first; i < mHistoryCount; i++) {
+                int index = mHistory[i % HISTORY];
+                if (i > first)
+                    sb.append('>');
+                sb.append(mWidths[index]).append('x').append(mHeights[index]);
+            }
+            return sb.toString();
+        }
+    }
+
+    // utility class that wraps up all the data and logic needed to acquire image frames from the camera
+    static class CameraAcquireFrames {
+        Camera mCamera;
+        SurfaceTexture mDummyTexture;
+        int mWidth, mHeight;        // size of the camera's images
+        int mFormat;                // YuvPlanes format of the camera's images ...
+        int mPreferredFormat;       // ... which is this one if the camera supports it, else NV21
+        CameraImage mPreviewImage;
+        volatile int mFrameCount;   // (written by the camera callback thread)
+        volatile boolean mNewFrame;
+        FramePool mPool;            // recycled buffers -- null unless we're in buffer-pool mode
+        CameraImage mLatestImage;   // (pool mode) newest converted frame the client hasn't picked up yet
+        volatile RowParallel mParallel; // (pool mode) if not null, frames are converted on several threads
+        VisionWorker<?> mWorker;    // (pool mode) if not null, frames go to this thread instead of loop()
+        FrameRecorder mRecorder;    // (pool mode) if not null, every frame is also recorded here
+        ResolutionGovernor mGovernor;   // (pool mode) if not null, picks the camera size as we go
+        LatencyStats mStats;        // (pool mode) how long frames take to get through each stage
+
+        public CameraAcquireFrames() {
+            mCamera = null;
+            mPreviewImage = null;
+            mDummyTexture = null;
+            mFrameCount = 0;
+            mNewFrame = false;
+            mFormat = mPreferredFormat = YuvPlanes.NV21;
+            mPool = null;
+            mLatestImage = null;
+            mParallel = null;
+            mWorker = null;
+            mRecorder = null;
+            mGovernor = null;
+            mStats = new LatencyStats();
+        }
+
+        Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+            public void onPreviewFrame(byte[] imageData, Camera camera) {
+                // process the frame and save results in member variables
+                // ...
+                mPreviewImage = new CameraImage(imageData, mWidth, mHeight, mFormat);
+                mNewFrame = true;
+                mFrameCount++;
+            }
+        };
+
+        // in buffer-pool mode, the camera fills one of our recycled buffers and we convert it in place
+        Camera.PreviewCallback mPooledPreviewCallback = new Camera.PreviewCallback() {
+            public void onPreviewFrame(byte[] imageData, Camera camera) {
+                CameraImage image = mPool.find(imageData);
+                if (image == null)
+                    return;                 // not one of ours (e.g. left over from a previous init)
+                mPool.mInUse.incrementAndGet();
+                image.mCaptureNanos = System.nanoTime();
+                mStats.mark(LatencyStats.CAPTURE, image.mCaptureNanos);
+                FrameRecorder recorder = mRecorder;
+                if (recorder != null && recorder.mWidth == image.mWidth && recorder.mHeight == image.mHeight &&
+                    recorder.mFormat == mFormat)
+                    recorder.record(imageData, System.nanoTime());
+                VisionWorker<?> worker = mWorker;
+                if (worker != null) {       // let the worker decode and analyze it on its own thread
+                    if (!worker.offer(image))
+                        mPool.mDropped.incrementAndGet();
+                    mFrameCount++;
+                    return;
+                }
+                image.convert(mParallel);
+                mStats.mark(LatencyStats.DECODE, image.mCaptureNanos);
+                synchronized (mPool) {
+                    if (mLatestImage != null) {     // client never saw the previous frame -- recycle it
+                        recycle(mLatestImage);
+                        mPool.mDropped.incrementAndGet();
+                    }
+                    mLatestImage = image;
+                    mNewFrame = true;
+                    mFrameCount++;
+                }
+            }
+        };
+
+        // give a pooled image's buffer back to the camera to be refilled
+        void recycle(CameraImage image) {
+            FramePool pool = mPool;
+            if (pool == null || pool.find(image.mData) == null)
+                return;                     // left over from before a size change -- let it go
+            pool.mInUse.decrementAndGet();
+            Camera camera = mCamera;
+            if (camera != null)
+                camera.addCallbackBuffer(image.mData);
+        }
+
+        // use the given YuvPlanes format (e.g. YuvPlanes.YV12) instead of NV21 if the camera supports it --
+        // call before init(). Everything in CameraLib reads frames through YuvPlanes, so detectors don't care.
+        public void setPreferredFormat(int format) {
+            mPreferredFormat = format;
+        }
+
+        // the YuvPlanes format the camera is actually delivering
+        public int format() {
+            return mFormat;
+        }
+
+        public boolean init(int iCamSize) {
+            try {
+                if (mCamera == null)        // make sure we don't already have it ...
+                    mCamera = Camera.open();
+                Camera.Parameters parameters = mCamera.getParameters();
+                List<Integer> previewFormats = parameters.getSupportedPreviewFormats();
+                mFormat = previewFormats.contains(mPreferredFormat) ? mPreferredFormat : YuvPlanes.NV21;
+                parameters.setPreviewFormat(mFormat);       // choices are NV21(17) and YV12(842094169)
+                List<Camera.Size> previewSizes = parameters.getSupportedPictureSizes();
+                int iSize = previewSizes.size()-iCamSize;  // use ith-smallest size (i>0): e.g. (1)160x120, (2)176x144, (3)320x240 entry
+                parameters.setPreviewSize(previewSizes.get(iSize).width, previewSizes.get(iSize).height);
+                parameters.setPictureSize(previewSizes.get(iSize).width, previewSizes.get(iSize).height);
+                mCamera.setParameters(parameters);
+                mWidth = previewSizes.get(iSize).width;
+                mHeight = previewSizes.get(iSize).height;
+                mDummyTexture = new SurfaceTexture(1); // make a target texture with an arbitrary texture id
+                mCamera.setPreviewTexture(mDummyTexture);
+                mCamera.setPreviewCallback(mPreviewCallback);
+                mCamera.startPreview();
+            }
+            catch (Exception e) {
+                mCamera.release();
+                mCamera = null;
+                return false;
+            }
+            return true;
+        }
+
+        // init the camera in buffer-pool mode: frames are delivered into poolSize recycled buffers
+        // (at least 3: one being filled by the camera, one waiting for the client, one the client is using)
+        // so steady-state acquisition allocates nothing. CameraImages returned by loop() in this mode are
+        // only valid until the next call to loop().
+        public boolean init(int iCamSize, int poolSize) {
+            return init(iCamSize, poolSize, false);
+        }
+
+        // ... optionally with lazily-decoded images (see CameraImage), which saves most of the per-frame work
+        // for detectors that only examine a few rows or small regions of each frame
+        public boolean init(int iCamSize, int poolSize, boolean lazy) {
+            if (!init(iCamSize))
+                return false;
+            try {
+                mCamera.setPreviewCallback(null);
+                mPool = new FramePool(Math.max(poolSize, 3), mWidth, mHeight, mFormat, lazy);
+                for (CameraImage image : mPool.mImages)
+                    mCamera.addCallbackBuffer(image.mData);
+                mCamera.setPreviewCallbackWithBuffer(mPooledPreviewCallback);
+            }
+            catch (Exception e) {
+                stop();
+                return false;
+            }
+            return true;
+        }
+
+        public CameraImage loop() {
+            if (mGovernor != null)
+                applyGovernor();
+            if (mPool != null) {
+                // the camera keeps running on its own in pool mode -- just trade the image the client
+                // had last time (back to the camera) for the newest one, if there is one
+                synchronized (mPool) {
+                    if (mLatestImage != null) {
+                        if (mPreviewImage != null)
+                            recycle(mPreviewImage);
+                        mPreviewImage = mLatestImage;
+                        mLatestImage = null;
+                        mNewFrame = false;
+                        mStats.mark(LatencyStats.CONSUME, mPreviewImage.mCaptureNanos);
+                    }
+                }
+                return mPreviewImage;
+            }
+            if (mNewFrame) {
+                mNewFrame = false;
+                // start another frame acquisition
+                try {
+                    mCamera.setPreviewCallback(mPreviewCallback);
+                    mCamera.startPreview();
+                }
+                catch (Exception e) {
+                    return null;
+                }
+            }
+            return mPreviewImage;       // may be null if no data ready yet
+        }
+
+        public int frameCount() {
+            return mFrameCount;
+        }
+
+        // (pool mode) convert frames using the given multi-threaded processor (or serially, if null) --
+        // we own it from now on, and stop() shuts it down
+        public void setParallel(RowParallel parallel) {
+            mParallel = parallel;
+        }
+
+        // (pool mode) start a VisionWorker thread that decodes and analyzes every frame with the given
+        // analyzer -- after this, loop() no longer returns frames; read worker.latest() instead
+        public <T> VisionWorker<T> startWorker(FrameAnalyzer<T> analyzer) {
+            VisionWorker<T> worker = new VisionWorker<T>(this, analyzer);
+            worker.start();
+            mWorker = worker;
+            return worker;
+        }
+
+        // (pool mode) also record every raw frame with the given recorder (or stop recording, if null) --
+        // the caller still owns the recorder and should close() it when done
+        public void setRecorder(FrameRecorder recorder) {
+            mRecorder = recorder;
+        }
+
+        // (pool mode) let a ResolutionGovernor pick the camera size from among those the camera supports,
+        // trying to keep the processing time of each frame within the given budget. It's fed by the
+        // VisionWorker, if there is one -- otherwise call frameProcessed() on it yourself -- and size changes
+        // take effect in loop(), which must keep being called (even with a VisionWorker).
+        public ResolutionGovernor startGovernor(double budgetMillis) {
+            List<Camera.Size> sizes = mCamera.getParameters().getSupportedPreviewSizes();
+            int[] widths = new int[sizes.size()], heights = new int[sizes.size()];
+            for (int i=0; i<widths.length; i++) {
+                widths[i] = sizes.get(i).width;
+                heights[i] = sizes.get(i).height;
+            }
+            ResolutionGovernor governor = new ResolutionGovernor(widths, heights, mWidth, mHeight, budgetMillis);
+            governor.takeRequest();         // it starts at the current size
+            mGovernor = governor;
+            return governor;
+        }
+
+        // switch the camera to the size the governor asked for, if any: stop the preview, resize, and
+        // restart it with a new buffer pool. Frames of the old size still out with the client or the
+        // worker are simply not given back to the camera when they're recycled.
+        void applyGovernor() {
+            int index = mGovernor.takeRequest();
+            if (index < 0 || mPool == null)
+                return;
+            int width = mGovernor.mWidths[index], height = mGovernor.mHeights[index];
+            if (width == mWidth && height == mHeight)
+                return;
+            boolean lazy = mPool.mImages[0].mLazy;
+            try {
+                mCamera.stopPreview();
+                mCamera.setPreviewCallbackWithBuffer(null);
+                Camera.Parameters parameters = mCamera.getParameters();
+                parameters.setPreviewSize(width, height);
+                mCamera.setParameters(parameters);
+                FramePool pool = new FramePool(mPool.mImages.length, width, height, mFormat, lazy);
+                pool.mDropped.set(mPool.mDropped.get());
+                synchronized (mPool) {
+                    mLatestImage = null;
+                    mPreviewImage = null;
+                    mWidth = width;
+                    mHeight = height;
+                    mPool = pool;
+                }
+                for (CameraImage image : pool.mImages)
+                    mCamera.addCallbackBuffer(image.mData);
+                mCamera.setPreviewCallbackWithBuffer(mPooledPreviewCallback);
+                mCamera.startPreview();
+            }
+            catch (Exception e) {
+                mGovernor = null;           // camera didn't like it -- stay put from now on
+            }
+        }
+
+        // (pool mode) latency, frame rate and dropped-frame statistics for each stage of the vision path
+        public LatencyStats stats() {
+            return mStats;
+        }
+
+        // number of pool buffers currently holding a frame rather than waiting to be filled (pool mode only)
+        public int buffersInUse() {
+            return (mPool != null) ? mPool.mInUse.get() : 0;
+        }
+
+        // number of frames that were replaced by a newer one before loop() (or the VisionWorker) got them (pool mode only)
+        public int framesDropped() {
+            return (mPool != null) ? mPool.mDropped.get() : 0;
+        }
+
+        public void stop() {
+            // no more frames first, then the threads that work on them, then the pool they share
+            mCamera.stopPreview();
+            mCamera.setPreviewCallback(null);
+            mCamera.setPreviewCallbackWithBuffer(null);
+            if (mWorker != null) {
+                mWorker.stop();
+                mWorker = null;
+            }
+            RowParallel parallel = mParallel;
+            if (parallel != null) {
+                mParallel = null;
+                parallel.shutdown();        // its threads are done with our frames, and nobody else's
+            }
             mCamera.release();
             mCamera = null;         // delete the Camera object now
             mDummyTexture = null;
             mPreviewImage = null;
+            mLatestImage = null;
+            mPool = null;
         }
 
     }
@@ -22,8 +22,83 @@ import com.qualcomm.ftcrobotcontroller.opmodes.CameraLib;
 
 public class CameraTestOp extends OpMode {
 
+    // what we learn from each camera frame -- filled in on the vision thread
+    static class FrameInfo {
+        int width, height;          // camera size
+        int dataSize;               // size of the raw preview data
+        int centerPixel;            // rgb at the center of the image
+        CameraLib.ScanlineBands[] hue;  // hue of scanlines at 1/3, 1/2, 2/3 of the image height
+        CameraLib.ScanlineBands[] dom;  // dominant colors of the same scanlines
+        int blobs;                      // number of color blobs found (at the coarsest pyramid level)
+        int redBlob, blueBlob;          // largest red and blue blob areas (0 if none) ...
+        float redX, blueX;              // ... and their centroids' x
+        boolean line;                   // whether a bright stripe (tape) was found ...
+        float lineOffset, lineAngle;    // ... and where it is: pixels right of center, degrees from vertical
+    }
+
+    // the analysis we run on each camera frame on the vision thread
+    static class FrameAnalyzer implements CameraLib.FrameAnalyzer<FrameInfo> {
+        static final int MAX_BANDS = 128;   // enough for 10-pixel bands on a 1280-pixel-wide image
+        CameraLib.ColorClassifier mClassifier = new CameraLib.ColorClassifier(5);
+        CameraLib.ImagePyramid mPyramid;    // (re)made whenever the camera size changes
+        CameraLib.LineDetector mLine;       // ditto
+
+        public FrameInfo newResult() {
+            FrameInfo info = new FrameInfo();
+            info.hue = new CameraLib.ScanlineBands[3];
+            info.dom = new CameraLib.ScanlineBands[3];
+            for (int i=0; i<3; i++) {
+                info.hue[i] = new CameraLib.ScanlineBands(MAX_BANDS);
+                info.dom[i] = new CameraLib.ScanlineBands(MAX_BANDS);
+            }
+            return info;
+        }
+
+        public void analyze(CameraLib.CameraImage frame, FrameInfo info) {
+            int width = frame.width(), height = frame.height();
+            info.width = width;
+            info.height = height;
+            info.dataSize = frame.dataSize();
+            info.centerPixel = frame.getPixel(width / 2, height / 2);
+
+            // band encodings of several significant scanlines
+            final int bandSize = 10;
+            for (int i=0; i<3; i++) {
+                int y = (i+2) * height / 6;     // 1/3, 1/2, 2/3
+                frame.scanlineHue(y, bandSize, info.hue[i]);
+                frame.scanlineDomColor(y, bandSize, info.dom[i]);
+            }
+
+            // find the biggest red (1) and blue (5) things in view -- blobs are found on a quarter-size pyramid level
+            // built straight from the YUV data, and only the regions around them get decoded and measured
+            if (mPyramid == null || mPyramid.mWidth != width || mPyramid.mHeight != height)
+                mPyramid = new CameraLib.ImagePyramid(width, height, 3, mClassifier);
+            final int minArea = 2;      // coarse pixels, i.e. about 32 full-size ones
+            final int margin = 4;
+            mPyramid.search(frame, 1, minArea, margin);
+            info.blobs = mPyramid.mBlobs.blobCount();
+            int red = mPyramid.largest();
+            info.redBlob = (red >= 0) ? mPyramid.area(red) : 0;
+            info.redX = (red >= 0) ? mPyramid.centroidX(red) : 0;
+            mPyramid.find(frame, 5, minArea, margin);
+            int blue = mPyramid.largest();
+            info.blueBlob = (blue >= 0) ? mPyramid.area(blue) : 0;
+            info.blueX = (blue >= 0) ? mPyramid.centroidX(blue) : 0;
+
+            // look for tape on the floor (luma only -- doesn't need the frame decoded at all)
+            if (mLine == null || mLine.mWidth != width || mLine.mHeight != height)
+                mLine = new CameraLib.LineDetector(width, height, 4, 200, width / 8);
+            info.line = mLine.detect(frame);
+            info.lineOffset = mLine.offset();
+            info.lineAngle = mLine.angle();
+        }
+    }
+
     int mLoopCount;
     CameraLib.CameraAcquireFrames mCamAcqFr;
+    CameraLib.VisionWorker<FrameInfo> mVision;
+    CameraLib.ResolutionGovernor mGovernor;
+    CameraLib.RowParallel mParallel;
 
 
     // Constructor
@@ -35,8 +110,22 @@ public class CameraTestOp extends OpMode {
     public void init() {
         mLoopCount = 0;
 
-        if (mCamAcqFr.init(2) == false)     // init camera at 2nd smallest size
+        if (mCamAcqFr.init(2, 4, true) == false)    // init camera at 2nd smallest size, with a pool of 4 recycled,
+                                                    // lazily-decoded frame buffers (we only decode a few scanlines
+                                                    // and the regions around blobs found on the YUV pyramid)
             telemetry.addData("error: ", "cannot initialize camera");
+        else {
+            mVision = mCamAcqFr.startWorker(new FrameAnalyzer());     // process frames on their own thread
+            mGovernor = mCamAcqFr.startGovernor(30);    // and pick the biggest size we can process in 30ms
+            // don't bother analyzing frames that look just like the last one (16x12 grid, changes of more
+            // than 12 levels at 3 or more points count), but do analyze at least every 15th frame
+            mVision.setChangeDetector(new CameraLib.ChangeDetector(16, 12, 12, 3, 15));
+            // every 100 frames, time decoding and classifying a whole frame on 1, 2 and 4 threads
+            // (the camera owns it from here, and shuts it down in stop())
+            mParallel = new CameraLib.RowParallel(2, 0);
+            mCamAcqFr.setParallel(mParallel);
+            mVision.setProfileInterval(100);
+        }
 
     }
 
@@ -45,30 +134,50 @@ public class CameraTestOp extends OpMode {
         telemetry.addData("loop count:", mLoopCount++);
         telemetry.addData("version: ", "1.3");
 
-        // get most recent frame from camera (may be same as last time or null)
-        CameraLib.CameraImage frame = mCamAcqFr.loop();
+        // let the camera change size if the governor wants it to (frames themselves come from the worker)
+        mCamAcqFr.loop();
 
-        // log debug info ...
-        if (frame != null) {
+        // get the results of analyzing the most recent frame from camera (may be same as last time)
+        if (mVision != null && mVision.resultCount() > 0) {
+            FrameInfo info = mVision.latest();
 
             // process the current frame
             // ... "move toward the light..."
 
             // log data about the most current image to driver station every loop so it stays up long enough to read
-            Camera.Size camSize = frame.cameraSize();
-            telemetry.addData("preview camera size: ", String.valueOf(camSize.width) + "x" + String.valueOf(camSize.height));
-            telemetry.addData("preview data size:", frame.dataSize());
-            telemetry.addData("preview rgb(center):", String.format("%08X", frame.getPixel(camSize.width / 2, camSize.height / 2)));
+            telemetry.addData("preview camera size: ", String.valueOf(info.width) + "x" + String.valueOf(info.height));
+            telemetry.addData("preview data size:", info.dataSize);
+            telemetry.addData("preview rgb(center):", String.format("%08X", info.centerPixel));
             telemetry.addData("frame number: ", mCamAcqFr.frameCount());
-
-            // log text representations of several significant scanlines
-            final int bandSize = 10;
-            telemetry.addData("hue a(1/3): ", frame.scanlineHue(camSize.height / 3, bandSize));
-            telemetry.addData("hue b(1/2): ", frame.scanlineHue(camSize.height / 2, bandSize));
-            telemetry.addData("hue c(2/3): ", frame.scanlineHue(2*camSize.height / 3, bandSize));
-            telemetry.addData("dom a(1/3): ", frame.scanlineDomColor(camSize.height / 3, bandSize));
-            telemetry.addData("dom b(1/2): ", frame.scanlineDomColor(camSize.height / 2, bandSize));
-            telemetry.addData("dom c(2/3): ", frame.scanlineDomColor(2*camSize.height / 3, bandSize));
+            telemetry.addData("frames analyzed: ", mVision.resultCount());
+            telemetry.addData("frames skipped: ", mVision.framesSkipped());
+            telemetry.addData("buffers in use: ", mCamAcqFr.buffersInUse());
+            telemetry.addData("frames dropped: ", mCamAcqFr.framesDropped());
+            telemetry.addData("governor: ", mGovernor.toString());
+            telemetry.addData("sizes: ", mGovernor.historyToString());
+
+            // how old the frame behind this result is, and how the vision path is keeping up
+            CameraLib.LatencyStats stats = mCamAcqFr.stats();
+            telemetry.addData("frame age ms: ", (System.nanoTime() - mVision.latestCaptureNanos()) / 1000000);
+            telemetry.addData("camera fps: ", String.format("%.1f", stats.fps(CameraLib.LatencyStats.CAPTURE)));
+            telemetry.addData("decode: ", stats.report(CameraLib.LatencyStats.DECODE));
+            telemetry.addData("analyze: ", stats.report(CameraLib.LatencyStats.ANALYZE));
+            telemetry.addData("consume: ", stats.report(CameraLib.LatencyStats.CONSUME));
+            telemetry.addData("full decode: ", mParallel.profileToString());
+
+            // log the biggest red and blue blobs
+            telemetry.addData("blobs: ", info.blobs);
+            telemetry.addData("red blob: ", info.redBlob + " @x=" + (int)info.redX);
+            telemetry.addData("blue blob: ", info.blueBlob + " @x=" + (int)info.blueX);
+            telemetry.addData("line: ", info.line ? String.format("%.0fpx %.0fdeg", info.lineOffset, info.lineAngle) : "none");
+
+            // log text representations of several significant scanlines (only rendered here, as they're sent)
+            telemetry.addData("hue a(1/3): ", info.hue[0].toString());
+            telemetry.addData("hue b(1/2): ", info.hue[1].toString());
+            telemetry.addData("hue c(2/3): ", info.hue[2].toString());
+            telemetry.addData("dom a(1/3): ", info.dom[0].toString());
+            telemetry.addData("dom b(1/2): ", info.dom[1].toString());
+            telemetry.addData("dom c(2/3): ", info.dom[2].toString());
 
         }
     }
@@ -0,0 +1,216 @@
+package com.qualcomm.ftcrobotcontroller.opmodes;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Host-side benchmarks for the Step/Sequence machinery of AutoLib -- plain Java, no robot needed.
+ * It lives in the test source set so it stays out of the robot app. Only the Step, Sequence, StepProgram, Timer
+ * and TimerWheel classes are exercised, so the SDK jars are only needed to resolve AutoLib's imports, e.g. from
+ * FtcRobotController/src (with M = main/java/com/qualcomm/ftcrobotcontroller/opmodes):
+ *   javac -cp <robotcore jar> -d /tmp/bench $M/AutoLib.java $M/EncoderMotor.java test/java/com/qualcomm/ftcrobotcontroller/opmodes/AutoLibBench.java
+ *   java -cp /tmp/bench com.qualcomm.ftcrobotcontroller.opmodes.AutoLibBench
+ * Add -Xint to see how the Sequence trees fare without a JIT to inline their loop() calls.
+ */
+public class AutoLibBench {
+
+    // how many timed Steps to run at once
+    static final int[] COUNTS = { 10, 100, 10000 };
+
+    // how long to run each measurement
+    static final long RUN_NANOS = 1000000000L;
+
+    public static void main(String[] args) {
+        for (int n : COUNTS)
+            benchTimers(n);
+        checkProgram(1000);
+        benchProgram(8, 3, 4);
+        benchProgram(16, 4, 8);
+    }
+
+    // a Step that just waits out its Timer, like LogTimeStep without the logging
+    static class TimedStep extends AutoLib.Step {
+        AutoLib.Timer mTimer;
+
+        TimedStep(double seconds, AutoLib.TimerWheel wheel) {
+            mTimer = new AutoLib.Timer(seconds, wheel);
+        }
+
+        public boolean loop() {
+            super.loop();
+            if (firstLoopCall()) {
+                mTimer.start();
+                waitFor(mTimer);
+            }
+            return mTimer.done();
+        }
+    }
+
+    // the cycle number, for CountSteps and CycleWakes -- this makes every run of the same tree the same
+    static int sCycle;
+
+    // a log of which Steps ran in what order, boiled down to a number
+    static long sTrace;
+
+    // a Step that finishes after it has run a given number of times
+    static class CountStep extends AutoLib.Step {
+        int mId, mCount;
+
+        CountStep(int id, int count) {
+            mId = id;
+            mCount = count;
+        }
+
+        public boolean loop() {
+            super.loop();
+            sTrace = sTrace * 31 + mId;
+            return (mLoopCount >= mCount);
+        }
+    }
+
+    // wakes every nth cycle
+    static class CycleWake implements AutoLib.Wake {
+        int mPeriod;
+
+        CycleWake(int period) {
+            mPeriod = period;
+        }
+
+        public boolean due(long now) {
+            return (sCycle % mPeriod == 0);
+        }
+    }
+
+    // a random tree of LinearSequences, ConcurrentSequences (with all sorts of completion policies,
+    // some scheduled) and CountSteps, some of which wait on CycleWakes
+    static AutoLib.Step randomTree(Random rand, int depth, int[] ids) {
+        AutoLib.Step s;
+        if (depth == 0 || rand.nextInt(4) == 0)
+            s = new CountStep(ids[0]++, 1 + rand.nextInt(20));
+        else {
+            AutoLib.Sequence seq;
+            if (rand.nextBoolean())
+                seq = new AutoLib.LinearSequence();
+            else
+                seq = new AutoLib.ConcurrentSequence()
+                        .setCompletion(rand.nextInt(4))
+                        .setScheduled(rand.nextBoolean());
+            int kids = 1 + rand.nextInt(4);
+            for (int i=0; i<kids; i++)
+                seq.add(randomTree(rand, depth - 1, ids));
+            s = seq;
+        }
+        if (rand.nextInt(5) == 0)
+            s.waitFor(new CycleWake(2 + rand.nextInt(3)));
+        return s;
+    }
+
+    // run the same random trees through the tree walker and compiled, and make sure every cycle comes out the same
+    static void checkProgram(int trees) {
+        int bad = 0;
+        long cycles = 0;
+        for (int t=0; t<trees; t++) {
+            long[] walked = runTrace(randomTree(new Random(t), 5, new int[1]), false);
+            long[] compiled = runTrace(randomTree(new Random(t), 5, new int[1]), true);
+            if (!Arrays.equals(walked, compiled))
+                bad++;
+            cycles += walked.length;
+        }
+        System.out.println("compiled vs. walked: " + trees + " random trees, " + cycles + " cycles, " + bad + " different");
+    }
+
+    // the trace after each cycle until the root is done, with the last one negated
+    static long[] runTrace(AutoLib.Step root, boolean compile) {
+        AutoLib.Step runner = compile ? new AutoLib.StepProgram(root) : root;
+        long[] trace = new long[1000];
+        sTrace = 0;
+        for (sCycle = 0; sCycle < trace.length; sCycle++) {
+            boolean done = runner.loop();
+            trace[sCycle] = done ? ~sTrace : sTrace;
+            if (done)
+                return Arrays.copyOf(trace, sCycle + 1);
+        }
+        return trace;
+    }
+
+    // a tree shaped like AutoTest1's, only bigger: a ConcurrentSequence of width LinearSequences,
+    // each of length ConcurrentSequences of fanout CountSteps
+    static AutoLib.Step shapedTree(int width, int length, int fanout) {
+        Random rand = new Random(width * 100 + length * 10 + fanout);
+        AutoLib.ConcurrentSequence root = new AutoLib.ConcurrentSequence();
+        int id = 0;
+        for (int i=0; i<width; i++) {
+            AutoLib.LinearSequence ls = new AutoLib.LinearSequence();
+            for (int j=0; j<length; j++) {
+                AutoLib.ConcurrentSequence cs = new AutoLib.ConcurrentSequence();
+                for (int k=0; k<fanout; k++)
+                    cs.add(new CountStep(id++, 100 + rand.nextInt(400)));
+                ls.add(cs);
+            }
+            root.add(ls);
+        }
+        return root;
+    }
+
+    // run the shaped tree to completion both ways, many times over; report the median time per cycle
+    static void benchProgram(int width, int length, int fanout) {
+        int reps = 200;
+        double[] walked = new double[reps], compiled = new double[reps];
+        for (int rep=0; rep<reps + 20; rep++) {     // alternate, and throw the first few away for the JIT
+            double w = runProgram(shapedTree(width, length, fanout));
+            double c = runProgram(new AutoLib.StepProgram(shapedTree(width, length, fanout)));
+            if (rep >= 20) {
+                walked[rep - 20] = w;
+                compiled[rep - 20] = c;
+            }
+        }
+        Arrays.sort(walked);
+        Arrays.sort(compiled);
+        System.out.println(String.format("tree %dx%dx%d (%d Steps): walked %.2f us/cycle, compiled %.2f us/cycle (medians of %d runs)",
+                width, length, fanout, width * length * fanout, walked[reps / 2], compiled[reps / 2], reps));
+    }
+
+    // returns microseconds per cycle to run the given root to completion
+    static double runProgram(AutoLib.Step root) {
+        long start = System.nanoTime();
+        int cycles = 1;
+        while (!root.loop())
+            cycles++;
+        return (System.nanoTime() - start) / 1000.0 / cycles;
+    }
+
+    // run n timed Steps concurrently for a while: each Timer checking the clock itself,
+    // the same with a TimerWheel telling them when they're done, and with the Sequence scheduled too
+    static void benchTimers(int n) {
+        double polled = runTimers(n, false, false);
+        double wheel = runTimers(n, true, false);
+        double scheduled = runTimers(n, true, true);
+        System.out.println(String.format("%5d timed Steps: polled %.2f us/cycle, wheel %.2f us/cycle, wheel+scheduled %.2f us/cycle",
+                n, polled, wheel, scheduled));
+    }
+
+    // returns microseconds per OpMode cycle, wheel tick included
+    static double runTimers(int n, boolean useWheel, boolean scheduled) {
+        AutoLib.TimerWheel wheel = useWheel ? new AutoLib.TimerWheel(0.001) : null;
+
+        // Timers from 0.1 to 2 seconds, so some finish during the run and most don't
+        Random rand = new Random(n);
+        AutoLib.ConcurrentSequence seq = new AutoLib.ConcurrentSequence().setScheduled(scheduled);
+        for (int i=0; i<n; i++)
+            seq.add(new TimedStep(0.1 + rand.nextDouble() * 1.9, wheel));
+
+        long cycles = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            if (wheel != null)
+                wheel.tick();
+            seq.loop();
+            cycles++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < RUN_NANOS);
+
+        return elapsed / 1000.0 / cycles;
+    }
+
+}
@@ -0,0 +1,259 @@
+package com.qualcomm.ftcrobotcontroller.opmodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Host-side benchmarks for the pixel-crunching parts of CameraLib -- plain Java, no phone or camera needed.
+ * It lives in the test source set so it stays out of the robot app. Build and run on the development machine
+ * with the SDK's android.jar on the classpath (it's only needed to resolve CameraLib's imports), e.g. from
+ * FtcRobotController/src:
+ *   javac -cp $ANDROID_SDK/platforms/android-19/android.jar -d /tmp/bench main/java/com/qualcomm/ftcrobotcontroller/opmodes/CameraLib.java test/java/com/qualcomm/ftcrobotcontroller/opmodes/CameraLibBench.java
+ *   java -cp /tmp/bench:$ANDROID_SDK/platforms/android-19/android.jar com.qualcomm.ftcrobotcontroller.opmodes.CameraLibBench
+ * Pass the name of a file made by CameraLib.FrameRecorder to also run the recorded frames through the pipeline.
+ */
+public class CameraLibBench {
+
+    // preview sizes we typically run the camera at
+    static final int[][] SIZES = { {176, 144}, {320, 240}, {640, 480} };
+
+    // how long to run each measurement
+    static final long RUN_NANOS = 1000000000L;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0)
+            benchPipeline("replay " + args[0], new CameraLib.FileFrameSource(new File(args[0]), true));
+        for (int[] size : SIZES)
+            benchPipeline("synthetic " + size[0] + "x" + size[1], new CameraLib.SyntheticFrameSource(size[0], size[1], 300));
+        benchPipeline("synthetic NV12 320x240", new CameraLib.SyntheticFrameSource(320, 240, CameraLib.YuvPlanes.NV12, 300));
+        benchPipeline("synthetic YV12 320x240", new CameraLib.SyntheticFrameSource(320, 240, CameraLib.YuvPlanes.YV12, 300));
+        benchPipeline("synthetic YV12 176x144", new CameraLib.SyntheticFrameSource(176, 144, CameraLib.YuvPlanes.YV12, 300));
+        for (int[] size : SIZES)
+            benchConvert(size[0], size[1]);
+        for (int[] size : SIZES)
+            benchParallelConvert(size[0], size[1]);
+        benchHue();
+        for (int[] size : SIZES)
+            benchPyramid(size[0], size[1]);
+        for (int[] size : SIZES)
+            benchLine(size[0], size[1]);
+        benchPixelReads(320, 240);
+    }
+
+    // read a whole (already decoded) frame in virtual orientation pixel by pixel, and a row at a time
+    static void benchPixelReads(final int w, final int h) {
+        final CameraLib.CameraImage frame = new CameraLib.CameraImage(makeFrame(w, h, 5), w, h);
+        final int[] out = new int[w * h];
+        double pixelMps = measure(w*h, new Runnable() {
+            public void run() {
+                for (int y = 0, o = 0; y < h; y++)
+                    for (int x = 0; x < w; x++)
+                        out[o++] = frame.getPixel(x, y);
+            }
+        });
+        double rowMps = measure(w*h, new Runnable() {
+            public void run() {
+                for (int y = 0; y < h; y++)
+                    frame.getRow(y, out, y * w);
+            }
+        });
+        double rectMps = measure(w*h, new Runnable() {
+            public void run() { frame.getRect(0, 0, w, h, out); }
+        });
+        System.out.println(String.format("pixel reads %dx%d: getPixel %.0f MP/s, getRow %.0f MP/s, getRect %.0f MP/s",
+                w, h, pixelMps, rowMps, rectMps));
+    }
+
+    // time the luma-only tape detector on a noisy frame with a stripe at a known offset and angle
+    static void benchLine(int w, int h) {
+        final CameraLib.YuvPlanes data = new CameraLib.YuvPlanes(new byte[w*h*3/2], CameraLib.YuvPlanes.NV21, w, h);
+        final int offset = w / 8;
+        final double slope = -Math.tan(Math.toRadians(10));     // 10 degrees, top leaning right
+        final int half = w / 40;
+        Random rand = new Random(4);
+        for (int y = 0; y < h; y++) {                           // virtual coordinates, flipped into the camera's
+            double center = (w - 1) / 2.0 + offset + slope * (y - (h - 1) / 2.0);
+            for (int x = 0; x < w; x++)                         // gray mat with a brightness gradient and noise
+                data.mData[(h-1-y) * w + (w-1-x)] = (byte) ((Math.abs(x - center) < half ? 200 : 40 + x * 60 / w) + rand.nextInt(32));
+        }
+        final CameraLib.LineDetector line = new CameraLib.LineDetector(w, h, 4, 200, w / 8);
+        double mps = measure(w*h, new Runnable() {
+            public void run() { line.detect(data); }
+        });
+        System.out.println(String.format("line %dx%d: %.3fms/frame, found %b offset %.1f (%d) angle %.1f (10) from %d rows",
+                w, h, w*h/mps/1000, line.found(), line.offset(), offset, line.angle(), line.points()));
+    }
+
+    // find the biggest red target with a coarse-to-fine pyramid search (2, 3 and 4 levels) versus classifying
+    // and blob-detecting the whole full-resolution frame, then check that they agree on one frame
+    static void benchPyramid(int w, int h) {
+        final CameraLib.ColorClassifier classifier = new CameraLib.ColorClassifier(5);
+        final CameraLib.BlobDetector blobs = new CameraLib.BlobDetector(w, h, classifier);
+        final CameraLib.SyntheticFrameSource source = new CameraLib.SyntheticFrameSource(w, h, -1);
+        source.start();
+        double fullMps = measure(w*h, new Runnable() {
+            public void run() { blobs.detect(source.next()); blobs.largest(1, 20); }
+        });
+        String s = String.format("pyramid search %dx%d: full %.2fms/frame;", w, h, w*h/fullMps/1000);
+        CameraLib.ImagePyramid[] pyramids = new CameraLib.ImagePyramid[3];
+        for (int levels = 2; levels <= 4; levels++) {
+            final CameraLib.ImagePyramid pyramid = pyramids[levels-2] = new CameraLib.ImagePyramid(w, h, levels, classifier);
+            double mps = measure(w*h, new Runnable() {
+                public void run() { pyramid.search(source.next(), 1, 2, 2); pyramid.largest(); }
+            });
+            s += String.format(" %d levels %.2fms/frame (%s),", levels, w*h/mps/1000, pyramid.report());
+        }
+        CameraLib.CameraImage frame = source.next();
+        blobs.detect(frame);
+        int b = blobs.largest(1, 20);
+        s += (b >= 0) ? String.format(" red: full %d@%.1f,%.1f", blobs.area(b), blobs.centroidX(b), blobs.centroidY(b)) : " red: none";
+        for (CameraLib.ImagePyramid pyramid : pyramids) {
+            pyramid.search(frame, 1, 2, 2);
+            int c = pyramid.largest();
+            s += (c >= 0) ? String.format(" / %d@%.1f,%.1f", pyramid.area(c), pyramid.centroidX(c), pyramid.centroidY(c)) : " / none";
+        }
+        source.stop();
+        System.out.println(s);
+    }
+
+    // compare the integer Pixel.hueInt with the float colorToHSV path it replaces -- the float path is
+    // reproduced here (colorToHSV itself only exists on the phone), so on the phone the old way is slower still
+    static void benchHue() {
+        int mismatches = 0;
+        for (int pix = 0; pix < 0x1000000; pix++)       // every RGB color
+            if (CameraLib.Pixel.hueInt(pix, 20) != floatHue(pix, 0.20, new float[3]))
+                mismatches++;
+
+        final int[] rgb = new int[320*240];
+        CameraLib.NV21toRGB.convertFixed(makeFrame(320, 240, 3), 320, 240, rgb);
+        final float[] hsv = new float[3];
+        final int[] sink = new int[1];
+        double floatMps = measure(rgb.length, new Runnable() {
+            public void run() { for (int pix : rgb) sink[0] += floatHue(pix, 0.20, hsv); }
+        });
+        double intMps = measure(rgb.length, new Runnable() {
+            public void run() { for (int pix : rgb) sink[0] += CameraLib.Pixel.hueInt(pix, 20); }
+        });
+        System.out.println(String.format("hue: float %.1f MP/s, integer %.1f MP/s (x%.2f), %d of 16M colors differ",
+                floatMps, intMps, intMps/floatMps, mismatches));
+    }
+
+    // Pixel.hue(pix, satCutoff, hsv) as it was, with Color.colorToHSV's float arithmetic written out
+    static int floatHue(int pix, double satCutoff, float[] hsv) {
+        int r = (pix >> 16) & 0xff, g = (pix >> 8) & 0xff, b = pix & 0xff;
+        int max = Math.max(r, Math.max(g, b)), min = Math.min(r, Math.min(g, b)), delta = max - min;
+        hsv[2] = max / 255f;
+        if (delta == 0) {
+            hsv[0] = 0;
+            hsv[1] = 0;
+        }
+        else {
+            hsv[1] = (float) delta / max;
+            float h;
+            if (r == max)
+                h = (float) (g - b) / delta;
+            else if (g == max)
+                h = 2 + (float) (b - r) / delta;
+            else
+                h = 4 + (float) (r - g) / delta;
+            h *= 60;
+            if (h < 0)
+                h += 360;
+            hsv[0] = h;
+        }
+        if (hsv[1] < satCutoff)
+            return (int)(hsv[2] * 7 + 7);
+        int iHue = ((int)hsv[0]+30)/60;
+        if (iHue == 6)
+            iHue = 0;
+        return iHue+1;
+    }
+
+    // per-frame latency of the fixed-point conversion split across 1, 2 and 4 threads
+    static void benchParallelConvert(int w, int h) {
+        CameraLib.YuvPlanes data = new CameraLib.YuvPlanes(makeFrame(w, h, 2), CameraLib.YuvPlanes.NV21, w, h);
+        int[] rgb = new int[w*h];
+        CameraLib.RowParallel parallel = new CameraLib.RowParallel(4, 0);
+        String s = "";
+        for (int threads : CameraLib.RowParallel.PROFILE_THREADS) {
+            parallel.setThreads(threads);
+            for (int i=0; i<50; i++)            // warm up
+                parallel.convert(data, rgb);
+            long total = 0;
+            int runs = 200;
+            for (int i=0; i<runs; i++) {
+                parallel.convert(data, rgb);
+                total += parallel.mLastNanos;
+            }
+            s += String.format(" %dt %.2fms", threads, total/1.0e6/runs);
+        }
+        parallel.shutdown();
+        System.out.println(String.format("parallel NV21->RGB %dx%d:", w, h) + s);
+    }
+
+    // compare the original float NV21->RGB conversion with the fixed-point one at the given size
+    static void benchConvert(final int w, final int h) {
+        final byte[] data = makeFrame(w, h, 1);
+        final int[] rgbFloat = new int[w*h];
+        final int[] rgbFixed = new int[w*h];
+
+        double floatMps = measure(w*h, new Runnable() {
+            public void run() { CameraLib.NV21toRGB.convert(data, w, h, rgbFloat); }
+        });
+        double fixedMps = measure(w*h, new Runnable() {
+            public void run() { CameraLib.NV21toRGB.convertFixed(data, w, h, rgbFixed); }
+        });
+
+        System.out.println(String.format("NV21->RGB %dx%d: float %.1f MP/s, fixed %.1f MP/s (x%.2f), max channel diff %d",
+                w, h, floatMps, fixedMps, fixedMps/floatMps, maxChannelDiff(rgbFloat, rgbFixed)));
+    }
+
+    // run frames from the given source through the whole detection pipeline and report per-stage timings
+    static void benchPipeline(String name, CameraLib.FrameSource source) {
+        CameraLib.VisionHarness harness = new CameraLib.VisionHarness(new CameraLib.ColorClassifier(5));
+        harness.run(source, 20);            // warm up
+        harness.run(source, Integer.MAX_VALUE);
+        System.out.println("pipeline " + name + ": " + harness.report());
+    }
+
+    // run the given per-frame work repeatedly (after a warm-up) and return throughput in megapixels/sec
+    static double measure(int pixelsPerRun, Runnable work) {
+        for (int i=0; i<20; i++)            // let the JIT have a go at it first
+            work.run();
+        int runs = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            work.run();
+            runs++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < RUN_NANOS);
+        return (double)pixelsPerRun * runs / (elapsed / 1000.0);
+    }
+
+    // make a plausible NV21 frame: smooth luma gradients with some noise, plus random chroma
+    static byte[] makeFrame(int w, int h, long seed) {
+        Random rand = new Random(seed);
+        byte[] data = new byte[w*h*3/2];
+        for (int y=0; y<h; y++)
+            for (int x=0; x<w; x++)
+                data[y*w+x] = (byte)((x*255/w + y*255/h)/2 + rand.nextInt(32));
+        for (int i=w*h; i<data.length; i++)
+            data[i] = (byte)rand.nextInt(256);
+        return data;
+    }
+
+    // return the largest difference in any of R, G, or B between corresponding pixels of two images
+    static int maxChannelDiff(int[] a, int[] b) {
+        int max = 0;
+        for (int i=0; i<a.length; i++)
+            for (int shift=0; shift<24; shift+=8) {
+                int d = Math.abs(((a[i]>>shift)&0xff) - ((b[i]>>shift)&0xff));
+                if (d > max)
+                    max = d;
+            }
+        return max;
+    }
+
+}